@@ -10,10 +10,23 @@ import lombok.Data;
 public class AssignExpr implements Expr {
     private Token token;
 
+    /**
+     * 驻留后的变量名，Resolver用它按引用查找作用域
+     */
+    private final Symbol symbol;
+
     private Expr value;
 
+    /**
+     * 同VariableExpr, 由Resolver填充
+     */
+    private int depth = -1;
+
+    private int slot;
+
     AssignExpr(Token name, Expr value) {
         this.token = name;
+        this.symbol = name.getSymbol();
         this.value = value;
     }
 
@@ -0,0 +1,82 @@
+package minilang;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * 解析结果的磁盘缓存。源码的SHA-256作为key，缓存文件是cacheDir下的"hash.ast"，
+ * 源码没有变化时直接mmap缓存文件解码出语法树，跳过Lexer和Parser。
+ * 缓存文件损坏或者格式版本不对时重新解析并覆盖。
+ * 缓存只是优化，读写缓存失败(目录只读、磁盘满)都不影响返回解析结果。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-17
+ */
+public class AstCache {
+
+    private final Path cacheDir;
+
+    public AstCache(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public List<Stmt> load(Path script) throws IOException {
+        MappedSource source = MappedSource.map(script);
+        byte[] hash = hash(source);
+        Path cacheFile = cacheDir.resolve(hex(hash) + ".ast");
+        if (Files.isRegularFile(cacheFile)) {
+            try {
+                List<Stmt> stmts = new AstReader(MappedSource.mapFile(cacheFile)).read(hash);
+                if (stmts != null) {
+                    return stmts;
+                }
+            } catch (IOException | RuntimeException e) {
+                //缓存不可用，重新解析
+            }
+        }
+        List<Stmt> stmts = new Parser(new Lexer(source).scan()).parse();
+        try {
+            store(cacheFile, new AstWriter().write(stmts, hash));
+        } catch (IOException | RuntimeException e) {
+            //写不了缓存，下次还是解析源码
+        }
+        return stmts;
+    }
+
+    /**
+     * 先写临时文件再rename，并发启动的进程不会读到写了一半的缓存
+     */
+    private void store(Path cacheFile, byte[] bytes) throws IOException {
+        Files.createDirectories(cacheDir);
+        Path temp = Files.createTempFile(cacheDir, cacheFile.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static byte[] hash(MappedSource source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.getBytes());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
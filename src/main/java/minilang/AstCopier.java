@@ -0,0 +1,119 @@
+package minilang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 复制一份语法树。Optimizer和Resolver会原地修改节点(替换子节点、写入depth/slot)，
+ * {@link Program}编译的是自己的一份，调用方的语法树再拿去编译或者解释执行都不会影响已经编译好的程序。
+ * <p>
+ * 只复制Parser产生的结构，Resolver和Interpreter写进去的状态都是初始值; Token和字面量不可变，直接共用。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-19
+ */
+class AstCopier implements ExprVisitor, StmtVisitor {
+
+    List<Stmt> copy(List<Stmt> stmts) {
+        List<Stmt> result = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            result.add(copyStmt(stmt));
+        }
+        return result;
+    }
+
+    @Override
+    public Object visitAssignExpr(AssignExpr expr) {
+        return new AssignExpr(expr.getToken(), copy(expr.getValue()));
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr) {
+        return new BinaryExpr(copy(expr.getLeft()), expr.getOperator(), copy(expr.getRight()));
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr) {
+        List<Expr> arguments = new ArrayList<>(expr.getArguments().size());
+        for (Expr argument : expr.getArguments()) {
+            arguments.add(copy(argument));
+        }
+        return new CallExpr(copy(expr.getCallee()), expr.getParen(), arguments);
+    }
+
+    @Override
+    public Object visitGroupingExpr(GroupExpr expr) {
+        return new GroupExpr(copy(expr.getExpr()));
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr) {
+        return new LiteralExpr(expr.getValue());
+    }
+
+    @Override
+    public Object visitLogicalExpr(LogicalExpr expr) {
+        return new LogicalExpr(copy(expr.getLeft()), expr.getOperator(), copy(expr.getRight()));
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr) {
+        return new UnaryExpr(expr.getOperator(), copy(expr.getRight()));
+    }
+
+    @Override
+    public Object visitVariableExpr(VariableExpr expr) {
+        return new VariableExpr(expr.getName());
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt) {
+        return new IfStmt(copy(stmt.getExpr()), copyStmt(stmt.getThenBranch()), copyStmt(stmt.getElseBranch()));
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt) {
+        return new BlockStmt(copy(stmt.getStmts()));
+    }
+
+    @Override
+    public Object visitExprStmt(ExprStmt stmt) {
+        return new ExprStmt(copy(stmt.getExpr()));
+    }
+
+    @Override
+    public Object visitFunctionStmt(FunctionStmt stmt) {
+        return new FunctionStmt(stmt.getName(), stmt.getParams(), copy(stmt.getBody()));
+    }
+
+    @Override
+    public Object visitPrintStmt(PrintStmt stmt) {
+        return new PrintStmt(copy(stmt.getExpression()));
+    }
+
+    @Override
+    public Object visitVarStmt(VarStmt stmt) {
+        return new VarStmt(stmt.getName(), copy(stmt.getExpr()));
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt) {
+        return new WhileStmt(copy(stmt.getCondition()), copyStmt(stmt.getBody()));
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt) {
+        return new ReturnStmt(stmt.getKeyword(), copy(stmt.getValue()));
+    }
+
+    /**
+     * 可选的子节点(else分支、没有初始值的var、没有返回值的return)是null
+     */
+    private Expr copy(Expr expr) {
+        return expr == null ? null : (Expr) expr.accept(this);
+    }
+
+    private Stmt copyStmt(Stmt stmt) {
+        return stmt == null ? null : (Stmt) stmt.accept(this);
+    }
+}
@@ -0,0 +1,217 @@
+package minilang;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static minilang.AstWriter.ASSIGN;
+import static minilang.AstWriter.BINARY;
+import static minilang.AstWriter.BLOCK;
+import static minilang.AstWriter.CALL;
+import static minilang.AstWriter.EXPRESSION;
+import static minilang.AstWriter.FALSE;
+import static minilang.AstWriter.FUNCTION;
+import static minilang.AstWriter.GROUP;
+import static minilang.AstWriter.IF;
+import static minilang.AstWriter.LITERAL;
+import static minilang.AstWriter.LOGICAL;
+import static minilang.AstWriter.MAGIC;
+import static minilang.AstWriter.NIL;
+import static minilang.AstWriter.NULL;
+import static minilang.AstWriter.NUMBER;
+import static minilang.AstWriter.PRINT;
+import static minilang.AstWriter.RETURN;
+import static minilang.AstWriter.STRING;
+import static minilang.AstWriter.TRUE;
+import static minilang.AstWriter.UNARY;
+import static minilang.AstWriter.VAR;
+import static minilang.AstWriter.VARIABLE;
+import static minilang.AstWriter.VERSION;
+import static minilang.AstWriter.WHILE;
+
+/**
+ * 读取{@link AstWriter}写出的语法树，直接在(通常是mmap的)ByteBuffer上解码。
+ * 字符串池里的标识符也驻留成{@link Symbol}，和Lexer产生的token一样同名共用一个对象。
+ * 格式不对时抛RuntimeException，调用方重新解析源码。
+ * 数组和列表的长度分配之前先和剩余的字节数比较，损坏的长度不会导致分配超大的数组。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-17
+ */
+class AstReader {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final ByteBuffer buffer;
+
+    private String[] strings;
+
+    private Symbol[] symbols;
+
+    AstReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * @param sourceHash 源码的hash，和文件里记录的不一致时返回null
+     */
+    List<Stmt> read(byte[] sourceHash) {
+        if (buffer.remaining() < 8 + sourceHash.length || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        byte[] hash = new byte[sourceHash.length];
+        buffer.get(hash);
+        if (!Arrays.equals(hash, sourceHash)) {
+            return null;
+        }
+        int count = readCount(4);
+        strings = new String[count];
+        symbols = new Symbol[count];
+        for (int i = 0; i < count; i++) {
+            byte[] utf8 = new byte[readCount(1)];
+            buffer.get(utf8);
+            strings[i] = new String(utf8, StandardCharsets.UTF_8);
+        }
+        List<Stmt> stmts = readStmts();
+        if (buffer.hasRemaining()) {
+            throw new RuntimeException("corrupted ast cache: trailing bytes");
+        }
+        return stmts;
+    }
+
+    private List<Stmt> readStmts() {
+        int count = readCount(1);
+        List<Stmt> stmts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            stmts.add(readStmt());
+        }
+        return stmts;
+    }
+
+    private Stmt readStmt() {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case IF:
+                return new IfStmt(readExpr(), readStmt(), readStmt());
+            case BLOCK:
+                return new BlockStmt(readStmts());
+            case EXPRESSION:
+                return new ExprStmt(readExpr());
+            case FUNCTION:
+                Token name = readToken();
+                int count = readCount(1);
+                List<Token> params = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    params.add(readToken());
+                }
+                return new FunctionStmt(name, params, readStmts());
+            case PRINT:
+                return new PrintStmt(readExpr());
+            case VAR:
+                return new VarStmt(readToken(), readExpr());
+            case WHILE:
+                return new WhileStmt(readExpr(), readStmt());
+            case RETURN:
+                return new ReturnStmt(readToken(), readExpr());
+            default:
+                throw new RuntimeException("corrupted ast cache: unknown stmt tag " + tag);
+        }
+    }
+
+    private Expr readExpr() {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case ASSIGN:
+                return new AssignExpr(readToken(), readExpr());
+            case BINARY:
+                return new BinaryExpr(readExpr(), readToken(), readExpr());
+            case CALL:
+                Expr callee = readExpr();
+                Token paren = readToken();
+                int count = readCount(1);
+                List<Expr> arguments = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    arguments.add(readExpr());
+                }
+                return new CallExpr(callee, paren, arguments);
+            case GROUP:
+                return new GroupExpr(readExpr());
+            case LITERAL:
+                return new LiteralExpr(readValue());
+            case LOGICAL:
+                return new LogicalExpr(readExpr(), readToken(), readExpr());
+            case UNARY:
+                return new UnaryExpr(readToken(), readExpr());
+            case VARIABLE:
+                return new VariableExpr(readToken());
+            default:
+                throw new RuntimeException("corrupted ast cache: unknown expr tag " + tag);
+        }
+    }
+
+    /**
+     * 读一个长度，每个元素至少占minBytes个字节，超过剩余字节数的长度一定是损坏的
+     */
+    private int readCount(int minBytes) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / minBytes) {
+            throw new RuntimeException("corrupted ast cache: bad length " + count);
+        }
+        return count;
+    }
+
+    private Object readValue() {
+        byte type = buffer.get();
+        switch (type) {
+            case NIL:
+                return null;
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case NUMBER:
+                return buffer.getDouble();
+            case STRING:
+                return strings[buffer.getInt()];
+            default:
+                throw new RuntimeException("corrupted ast cache: unknown literal type " + type);
+        }
+    }
+
+    /**
+     * 没有源码，token的source就是它自己的文本
+     */
+    private Token readToken() {
+        TokenType type = TYPES[buffer.get()];
+        String lexeme = type.lexeme;
+        Symbol symbol = null;
+        if (lexeme == null) {
+            int index = buffer.getInt();
+            lexeme = strings[index];
+            if (type == TokenType.IDENTIFIER) {
+                symbol = symbol(index);
+                lexeme = symbol.getName();
+            }
+        }
+        int line = buffer.getInt();
+        int column = buffer.getInt();
+        return new Token(type, lexeme, 0, lexeme.length(), lexeme, symbol, null, line, column);
+    }
+
+    private Symbol symbol(int index) {
+        Symbol symbol = symbols[index];
+        if (symbol == null) {
+            String name = strings[index];
+            //字符串池里没有重复，每个下标创建一个Symbol就是驻留
+            symbol = new Symbol(name, name.hashCode());
+            symbols[index] = symbol;
+        }
+        return symbol;
+    }
+}
@@ -0,0 +1,300 @@
+package minilang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把Parser生成的语法树写成紧凑的二进制格式，由{@link AstReader}读回来:
+ * <pre>
+ * magic(int) version(int) sourceHash(32字节)
+ * 字符串池: count(int) {length(int) utf8字节}
+ * 语句: count(int) {stmt}
+ * </pre>
+ * 每个节点以一个字节的tag开头，tag为0表示null; 标识符、字符串常量都写成字符串池的下标。
+ * Token只保存type、文本、行号和列号。
+ * 要在Optimizer和Resolver之前写，它们会原地修改语法树。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-17
+ */
+class AstWriter implements ExprVisitor, StmtVisitor {
+
+    static final int MAGIC = 0x4D4C4153;
+
+    static final int VERSION = 1;
+
+    static final byte NULL = 0;
+
+    static final byte ASSIGN = 1;
+    static final byte BINARY = 2;
+    static final byte CALL = 3;
+    static final byte GROUP = 4;
+    static final byte LITERAL = 5;
+    static final byte LOGICAL = 6;
+    static final byte UNARY = 7;
+    static final byte VARIABLE = 8;
+
+    static final byte IF = 1;
+    static final byte BLOCK = 2;
+    static final byte EXPRESSION = 3;
+    static final byte FUNCTION = 4;
+    static final byte PRINT = 5;
+    static final byte VAR = 6;
+    static final byte WHILE = 7;
+    static final byte RETURN = 8;
+
+    /**
+     * LiteralExpr的值类型
+     */
+    static final byte NIL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte NUMBER = 3;
+    static final byte STRING = 4;
+
+    private final Map<String, Integer> pool = new HashMap<>();
+
+    private final List<String> strings = new ArrayList<>();
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private final DataOutputStream out = new DataOutputStream(body);
+
+    byte[] write(List<Stmt> stmts, byte[] sourceHash) {
+        try {
+            writeStmts(stmts);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.size() + 1024);
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.write(sourceHash);
+            header.writeInt(strings.size());
+            for (String string : strings) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                header.writeInt(utf8.length);
+                header.write(utf8);
+            }
+            body.writeTo(header);
+            header.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Object visitAssignExpr(AssignExpr expr) {
+        writeByte(ASSIGN);
+        writeToken(expr.getToken());
+        writeExpr(expr.getValue());
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr) {
+        writeByte(BINARY);
+        writeExpr(expr.getLeft());
+        writeToken(expr.getOperator());
+        writeExpr(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr) {
+        writeByte(CALL);
+        writeExpr(expr.getCallee());
+        writeToken(expr.getParen());
+        writeInt(expr.getArguments().size());
+        for (Expr argument : expr.getArguments()) {
+            writeExpr(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitGroupingExpr(GroupExpr expr) {
+        writeByte(GROUP);
+        writeExpr(expr.getExpr());
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr) {
+        writeByte(LITERAL);
+        Object value = expr.getValue();
+        if (value == null) {
+            writeByte(NIL);
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            writeByte(NUMBER);
+            try {
+                out.writeDouble((Double) value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            writeByte(STRING);
+            writeInt(indexOf((String) value));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalExpr(LogicalExpr expr) {
+        writeByte(LOGICAL);
+        writeExpr(expr.getLeft());
+        writeToken(expr.getOperator());
+        writeExpr(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr) {
+        writeByte(UNARY);
+        writeToken(expr.getOperator());
+        writeExpr(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Object visitVariableExpr(VariableExpr expr) {
+        writeByte(VARIABLE);
+        writeToken(expr.getName());
+        return null;
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt) {
+        writeByte(IF);
+        writeExpr(stmt.getExpr());
+        writeStmt(stmt.getThenBranch());
+        writeStmt(stmt.getElseBranch());
+        return null;
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt) {
+        writeByte(BLOCK);
+        writeStmts(stmt.getStmts());
+        return null;
+    }
+
+    @Override
+    public Object visitExprStmt(ExprStmt stmt) {
+        writeByte(EXPRESSION);
+        writeExpr(stmt.getExpr());
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionStmt(FunctionStmt stmt) {
+        writeByte(FUNCTION);
+        writeToken(stmt.getName());
+        writeInt(stmt.getParams().size());
+        for (Token param : stmt.getParams()) {
+            writeToken(param);
+        }
+        writeStmts(stmt.getBody());
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStmt(PrintStmt stmt) {
+        writeByte(PRINT);
+        writeExpr(stmt.getExpression());
+        return null;
+    }
+
+    @Override
+    public Object visitVarStmt(VarStmt stmt) {
+        writeByte(VAR);
+        writeToken(stmt.getName());
+        writeExpr(stmt.getExpr());
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt) {
+        writeByte(WHILE);
+        writeExpr(stmt.getCondition());
+        writeStmt(stmt.getBody());
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt) {
+        writeByte(RETURN);
+        writeToken(stmt.getKeyword());
+        writeExpr(stmt.getValue());
+        return null;
+    }
+
+    private void writeStmts(List<Stmt> stmts) {
+        writeInt(stmts.size());
+        for (Stmt stmt : stmts) {
+            writeStmt(stmt);
+        }
+    }
+
+    private void writeStmt(Stmt stmt) {
+        if (stmt == null) {
+            writeByte(NULL);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    private void writeExpr(Expr expr) {
+        if (expr == null) {
+            writeByte(NULL);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    /**
+     * 符号和关键字的文本由type决定，只有标识符等需要写文本
+     */
+    private void writeToken(Token token) {
+        writeByte((byte) token.type.ordinal());
+        if (token.type.lexeme == null) {
+            writeInt(indexOf(token.getLexeme()));
+        }
+        writeInt(token.line);
+        writeInt(token.column);
+    }
+
+    private int indexOf(String string) {
+        Integer index = pool.get(string);
+        if (index == null) {
+            index = strings.size();
+            pool.put(string, index);
+            strings.add(string);
+        }
+        return index;
+    }
+
+    private void writeByte(byte value) {
+        try {
+            out.writeByte(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeInt(int value) {
+        try {
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
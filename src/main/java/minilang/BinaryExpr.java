@@ -9,9 +9,31 @@ import lombok.Data;
 @Data
 public class BinaryExpr implements Expr {
 
+    /**
+     * 根据运行时实际看到的操作数类型特化的版本。
+     * 第一次执行时从UNINITIALIZED特化成DOUBLE/STRING版本，之后类型变了就退化成GENERIC，不再重新特化。
+     */
+    public enum Specialization {
+        UNINITIALIZED,
+        ADD_DOUBLE,
+        SUBTRACT_DOUBLE,
+        MULTIPLY_DOUBLE,
+        DIVIDE_DOUBLE,
+        GREATER_DOUBLE,
+        GREATER_EQUAL_DOUBLE,
+        LESS_DOUBLE,
+        LESS_EQUAL_DOUBLE,
+        EQUAL_DOUBLE,
+        NOT_EQUAL_DOUBLE,
+        CONCAT_STRING,
+        GENERIC
+    }
+
     private Expr left, right;
     private Token operator;
 
+    private Specialization specialization = Specialization.UNINITIALIZED;
+
     BinaryExpr(Expr left, Token operator, Expr right) {
         this.left = left;
         this.right = right;
@@ -13,6 +13,11 @@ public class BlockStmt implements Stmt {
 
     private List<Stmt> stmts;
 
+    /**
+     * 大于0时每次进入block新建一个这么大的Environment, 由Resolver填充
+     */
+    private int slotCount;
+
     BlockStmt(List<Stmt> stmts) {
         this.stmts = stmts;
     }
@@ -0,0 +1,110 @@
+package minilang;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次执行的步数和时间限制，用来中止不可信脚本里的死循环。
+ * 执行引擎在循环回边和函数调用处调用{@link #tick()}，每次算一步。
+ * <p>
+ * tick只把一个计数器减一，减到负数时才进入{@link #refill()}:
+ * 累加已经走过的步数、检查是否超过maxSteps，以及调用System.nanoTime检查deadline，
+ * 每{@link #CHECK_INTERVAL}步最多检查一次时间，正常执行时的开销很小。
+ * <p>
+ * 计数器不是线程安全的，每次执行创建自己的Budget。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-21
+ */
+public final class Budget {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static final int CHECK_INTERVAL = 4096;
+
+    /**
+     * 超过这个时间(约146年)按不限制处理，nanoTime加上去之后的差值比较不会溢出
+     */
+    private static final long MAX_TIMEOUT_NANOS = Long.MAX_VALUE / 2;
+
+    private final long maxSteps;
+
+    private final long timeoutMillis;
+
+    private final boolean timed;
+
+    /**
+     * System.nanoTime()的截止时间，timed为false时不检查
+     */
+    private final long deadline;
+
+    /**
+     * 之前的窗口里已经走过的步数
+     */
+    private long steps;
+
+    /**
+     * 当前窗口的大小和剩余步数
+     */
+    private long window;
+
+    private long ticks;
+
+    /**
+     * @param maxSteps      最多执行的步数，{@link #UNLIMITED}表示不限制
+     * @param timeoutMillis 从创建开始计算的执行时间，{@link #UNLIMITED}表示不限制
+     */
+    public Budget(long maxSteps, long timeoutMillis) {
+        if (maxSteps < 0 || timeoutMillis < 0) {
+            throw new IllegalArgumentException("negative budget, maxSteps:" + maxSteps + " timeoutMillis:" + timeoutMillis);
+        }
+        this.maxSteps = maxSteps;
+        this.timeoutMillis = timeoutMillis;
+        //toNanos溢出时返回Long.MAX_VALUE
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.timed = timeoutMillis != UNLIMITED && timeoutNanos < MAX_TIMEOUT_NANOS;
+        this.deadline = timed ? System.nanoTime() + timeoutNanos : 0;
+        this.window = Math.min(CHECK_INTERVAL, maxSteps);
+        this.ticks = window;
+    }
+
+    public static Budget unlimited() {
+        return new Budget(UNLIMITED, UNLIMITED);
+    }
+
+    public void tick() {
+        if (--ticks < 0) {
+            refill();
+        }
+    }
+
+    /**
+     * 已经执行的步数
+     */
+    public long getSteps() {
+        return steps + window - Math.max(ticks, 0);
+    }
+
+    private void refill() {
+        steps += window;
+        long remaining = maxSteps == UNLIMITED ? UNLIMITED : maxSteps - steps;
+        if (remaining <= 0) {
+            exhaust();
+            throw new BudgetExceededException("script exceeded the step limit of " + maxSteps);
+        }
+        if (timed && System.nanoTime() - deadline > 0) {
+            exhaust();
+            throw new BudgetExceededException("script exceeded the time limit of " + timeoutMillis + "ms");
+        }
+        window = Math.min(CHECK_INTERVAL, remaining);
+        //这次tick本身算窗口里的第一步
+        ticks = window - 1;
+    }
+
+    /**
+     * 超限之后每次tick都重新检查并抛异常
+     */
+    private void exhaust() {
+        window = 0;
+        ticks = 0;
+    }
+}
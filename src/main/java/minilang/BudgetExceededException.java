@@ -0,0 +1,16 @@
+package minilang;
+
+/**
+ * 脚本执行超过了{@link Budget}限制的步数或者时间
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-21
+ */
+public class BudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BudgetExceededException(String message) {
+        super(message);
+    }
+}
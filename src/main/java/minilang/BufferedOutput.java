@@ -0,0 +1,54 @@
+package minilang;
+
+import java.io.PrintStream;
+
+/**
+ * 先写进缓冲区，攒到threshold个字符或者脚本结束时才一次性写到PrintStream，
+ * 循环里大量print时不需要每行都加锁、刷新一次System.out。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-22
+ */
+public class BufferedOutput implements Output {
+
+    public static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /**
+     * 为null时写到flush那一刻的System.out，调用方替换了System.out也能生效
+     */
+    private final PrintStream stream;
+
+    private final int threshold;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    public BufferedOutput() {
+        this(null, DEFAULT_THRESHOLD);
+    }
+
+    public BufferedOutput(PrintStream stream, int threshold) {
+        this.stream = stream;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void println(String text) {
+        buffer.append(text).append(LINE_SEPARATOR);
+        if (buffer.length() >= threshold) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (buffer.length() == 0) {
+            return;
+        }
+        PrintStream out = stream != null ? stream : System.out;
+        out.print(buffer);
+        out.flush();
+        buffer.setLength(0);
+    }
+}
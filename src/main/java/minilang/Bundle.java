@@ -0,0 +1,34 @@
+package minilang;
+
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * {@link BundleLoader}加载的结果: 按文件顺序合并的顶层语句，以及加载耗时。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-18
+ */
+@Data
+public class Bundle {
+
+    private final List<Stmt> stmts;
+
+    private final int fileCount;
+
+    /**
+     * 各个文件词法分析、语法分析(或者读缓存)耗时之和，并行时大于wallNanos
+     */
+    private final long loadNanos;
+
+    /**
+     * 从开始加载到所有文件合并完成的实际耗时
+     */
+    private final long wallNanos;
+
+    public String toString() {
+        return String.format("%d files, %d statements, load %.1fms, wall %.1fms",
+                fileCount, stmts.size(), loadNanos / 1e6, wallNanos / 1e6);
+    }
+}
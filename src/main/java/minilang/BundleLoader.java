@@ -0,0 +1,102 @@
+package minilang;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 并行加载多个互相独立的脚本文件。每个文件一个任务，在ForkJoinPool上各自词法分析、语法分析，
+ * 结果按传入的文件顺序合并，和逐个加载的声明顺序完全一样，不受线程调度影响。
+ * 每个任务用自己的Lexer和Parser，它们之间没有共享的可变状态。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-18
+ */
+public class BundleLoader {
+
+    private final ForkJoinPool pool;
+
+    /**
+     * 为null时不使用缓存
+     */
+    private final AstCache cache;
+
+    public BundleLoader() {
+        this(ForkJoinPool.commonPool(), null);
+    }
+
+    public BundleLoader(ForkJoinPool pool, AstCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    public Bundle load(List<Path> files) throws IOException {
+        long start = System.nanoTime();
+        AtomicLong loadNanos = new AtomicLong();
+        List<ForkJoinTask<List<Stmt>>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(pool.submit(new LoadTask(file, loadNanos)));
+        }
+        List<Stmt> stmts = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            //按顺序join，报错的话报告的也是顺序上第一个出错的文件
+            try {
+                stmts.addAll(tasks.get(i).get());
+            } catch (ExecutionException e) {
+                cancel(tasks);
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                throw new RuntimeException(files.get(i) + ": " + cause.getMessage(), cause);
+            } catch (InterruptedException e) {
+                cancel(tasks);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while loading bundle", e);
+            }
+        }
+        return new Bundle(stmts, files.size(), loadNanos.get(), System.nanoTime() - start);
+    }
+
+    private static void cancel(List<ForkJoinTask<List<Stmt>>> tasks) {
+        for (ForkJoinTask<List<Stmt>> task : tasks) {
+            task.cancel(false);
+        }
+    }
+
+    private class LoadTask extends RecursiveTask<List<Stmt>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path file;
+
+        private final AtomicLong loadNanos;
+
+        LoadTask(Path file, AtomicLong loadNanos) {
+            this.file = file;
+            this.loadNanos = loadNanos;
+        }
+
+        @Override
+        protected List<Stmt> compute() {
+            long start = System.nanoTime();
+            try {
+                if (cache != null) {
+                    return cache.load(file);
+                }
+                return new Parser(new Lexer(MappedSource.map(file)).scan()).parse();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                loadNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -21,7 +21,12 @@ public class CallExpr implements Expr {
         return visitor.visitCallExpr(this);
     }
 
-    final Expr callee;
+    Expr callee;
     final Token paren;
-    final List<Expr> arguments;
+    List<Expr> arguments;
+
+    /**
+     * return f(...) 这种尾调用，由Resolver标记，执行时复用调用方的位置，不增加调用深度
+     */
+    private boolean tailCall;
 }
@@ -1,64 +1,61 @@
 package minilang;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
+ * 局部变量的存储，按slot下标访问，slot和depth都由{@link Resolver}静态计算好，
+ * 运行时不需要做任何hash或者字符串比较。
+ * 一个Environment对应一个函数(或者顶层脚本)的栈帧，block里声明的变量也分配在所在函数的帧里，
+ * 只有循环里会被闭包捕获的block才有自己的Environment。
+ *
  * @author tianbing <tianbing@kuaishou.com>
  * Created on 2023-06-11
  */
 public class Environment {
 
-    private final Map<String, Object> values = new HashMap<>();
+    final Object[] values;
 
-    private Environment parent;
+    final Environment parent;
 
-    public Environment() {
-        parent = null;
+    public Environment(int size) {
+        this(size, null);
     }
 
-    public Environment(Environment env) {
-        this.parent= env;
+    public Environment(int size, Environment env) {
+        this.values = new Object[size];
+        this.parent = env;
     }
 
-    public void define(String name, Object value) {
-        if (values.containsKey(name)) {
-            throw new RuntimeException("name already defined:" + name);
-        }
-        values.put(name, value);
+    /**
+     * VM在当前栈帧内直接按下标读写
+     */
+    public Object[] getValues() {
+        return values;
     }
 
-    public void define(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            throw new RuntimeException("name already defined:" + name);
-        }
-        values.put(name.lexeme, value);
+    public Environment getParent() {
+        return parent;
     }
 
-    public void assign(Token name, Object value) {
-        Environment env = this;
-        while (env != null) {
-            if (env.values.containsKey(name.lexeme)) {
-                env.values.put(name.lexeme, value);
-                break;
-            }
-            env = env.parent;
-        }
-        if (env == null) {
-            throw new RuntimeException(name + " undefined");
-        }
+    public Object get(int slot) {
+        return values[slot];
+    }
+
+    public void set(int slot, Object value) {
+        values[slot] = value;
     }
 
+    public Object getAt(int depth, int slot) {
+        return ancestor(depth).values[slot];
+    }
 
-    public Object get(Token name) {
-        //这里需要区分name存在值是null和name不存在的情况，所以需要先contains
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if (parent != null) {
-            return parent.get(name);
-        }
-        throw new RuntimeException("cannot find token " + name);
+    public void assignAt(int depth, int slot, Object value) {
+        ancestor(depth).values[slot] = value;
     }
 
+    Environment ancestor(int depth) {
+        Environment env = this;
+        for (int i = 0; i < depth; i++) {
+            env = env.parent;
+        }
+        return env;
+    }
 }
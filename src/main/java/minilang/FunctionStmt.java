@@ -9,7 +9,7 @@ import lombok.Data;
  * Created on 2023-06-07
  */
 @Data
-class FunctionStmt implements Stmt {
+public class FunctionStmt implements Stmt {
     public FunctionStmt(Token name, List<Token> params, List<Stmt> body) {
         this.name = name;
         this.params = params;
@@ -23,7 +23,25 @@ class FunctionStmt implements Stmt {
 
     final Token name;
     final List<Token> params;
-    final List<Stmt> body;
+    List<Stmt> body;
+
+    /**
+     * 函数名绑定的位置, 含义同VarStmt
+     */
+    private int depth = -1;
+
+    private int slot;
+
+    /**
+     * 栈帧大小(参数 + 所有局部变量), 由Resolver填充
+     */
+    private int slotCount;
+
+    /**
+     * 所有闭包、所有执行上下文调用这个声明的次数，达到阈值时尝试JIT编译。
+     * 多线程执行同一棵语法树时不加锁，丢掉几次计数只会晚一点编译
+     */
+    private int calls;
 }
 
 
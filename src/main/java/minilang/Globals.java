@@ -0,0 +1,144 @@
+package minilang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 全局变量表。
+ * 名字到slot的映射只在{@link Resolver}阶段使用，运行时直接按slot读写数组。
+ * 全局变量可以先引用后定义(比如函数里引用后面才声明的全局函数)，所以用UNDEFINED区分"未定义"和"值为nil"。
+ * <p>
+ * {@link Program}编译完之后名字到slot的映射就固定了，每次执行用{@link #Globals(Globals)}创建自己的值数组，
+ * 映射在多个执行之间共享，只有执行时又加了新名字才复制一份。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-11
+ */
+public class Globals {
+
+    private static final Object UNDEFINED = new Object();
+
+    private Map<String, Integer> slots;
+
+    private List<String> names;
+
+    /**
+     * slots和names是从编译时的Globals共享来的，修改之前要先复制
+     */
+    private boolean shared;
+
+    /**
+     * 最初分配slot的Globals，同一个layout下的slot含义一样
+     */
+    private final Globals layout;
+
+    private Object[] values;
+
+    public Globals() {
+        this.slots = new HashMap<>();
+        this.names = new ArrayList<>();
+        this.layout = this;
+        this.values = new Object[0];
+    }
+
+    /**
+     * 和layout使用相同的slot分配，所有变量都是未定义
+     */
+    Globals(Globals layout) {
+        this.slots = layout.slots;
+        this.names = layout.names;
+        this.shared = true;
+        this.layout = layout.layout;
+        this.values = new Object[Math.max(16, names.size())];
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    void reset() {
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    Globals getLayout() {
+        return layout;
+    }
+
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            if (shared) {
+                slots = new HashMap<>(slots);
+                names = new ArrayList<>(names);
+                shared = false;
+            }
+            slot = slots.size();
+            slots.put(name, slot);
+            names.add(name);
+            if (slot >= values.length) {
+                int oldLength = values.length;
+                values = Arrays.copyOf(values, Math.max(16, oldLength * 2));
+                Arrays.fill(values, oldLength, values.length, UNDEFINED);
+            }
+        }
+        return slot;
+    }
+
+    public void define(String name, Object value) {
+        int slot = slotOf(name);
+        if (values[slot] != UNDEFINED) {
+            throw new RuntimeException("name already defined:" + name);
+        }
+        values[slot] = value;
+    }
+
+    void define(int slot, Token name, Object value) {
+        if (values[slot] != UNDEFINED) {
+            throw new RuntimeException("name already defined:" + name);
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * name只用来报错: 解释执行时是Token, JIT生成的代码传的是Token的字符串形式，两者报错信息一样
+     */
+    public void assign(int slot, Object name, Object value) {
+        if (values[slot] == UNDEFINED) {
+            throw new RuntimeException(name + " undefined");
+        }
+        values[slot] = value;
+    }
+
+    public Object get(int slot, Object name) {
+        Object value = values[slot];
+        if (value == UNDEFINED) {
+            throw new RuntimeException("cannot find token " + name);
+        }
+        return value;
+    }
+
+    /**
+     * 下面几个按slot访问的方法给没有Token的执行引擎用(比如minilang.vm)，报错信息里只有变量名
+     */
+    public void define(int slot, Object value) {
+        if (values[slot] != UNDEFINED) {
+            throw new RuntimeException("name already defined:" + names.get(slot));
+        }
+        values[slot] = value;
+    }
+
+    public void assign(int slot, Object value) {
+        if (values[slot] == UNDEFINED) {
+            throw new RuntimeException(names.get(slot) + " undefined");
+        }
+        values[slot] = value;
+    }
+
+    public Object get(int slot) {
+        Object value = values[slot];
+        if (value == UNDEFINED) {
+            throw new RuntimeException("cannot find variable " + names.get(slot));
+        }
+        return value;
+    }
+}
@@ -1,17 +1,174 @@
 package minilang;
 
+import java.util.Collections;
 import java.util.List;
 
+import minilang.jit.CompiledFunction;
+import minilang.jit.Jit;
+
 /**
  * @author tianbing <tianbing@kuaishou.com>
  * Created on 2023-06-07
  */
 public class Interpreter implements ExprVisitor, StmtVisitor {
 
-    Environment globals = new Environment();
-    private Environment environment = globals;
+    /**
+     * evaluateDouble遇到结果不是数字时抛出，只在类型变化的时候发生，不需要异常栈
+     */
+    private static final class UnexpectedResultException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        final transient Object result;
+
+        UnexpectedResultException(Object result) {
+            super(null, null, false, false);
+            this.result = result;
+        }
+    }
+
+    /**
+     * 语句执行的结果: 正常执行完返回null，执行了return返回RETURN，返回值放在returnValue里。
+     * BlockStmt/IfStmt/WhileStmt遇到非null的结果立即向上返回，直到executeFunction，
+     * 正常路径上只多一次null判断，不需要抛异常展开栈
+     */
+    private static final Object RETURN = new Object();
+
+    /**
+     * 尾调用: 被调用的函数放在tailCallee里，解释执行的函数已经准备好栈帧tailFrame，
+     * 编译过的函数和原生函数准备好参数tailArgs，由runTailCalls在循环里接着执行。
+     * JIT生成的代码也通过{@link #tailCall(Object, Object[], String)}返回这个值
+     */
+    private static final Object TAIL_CALL = new Object();
+
+    final Globals globals;
+    private Environment environment;
+
+    private Object returnValue;
+
+    private Object tailCallee;
+
+    private Environment tailFrame;
+
+    private Object[] tailArgs;
+
+    /**
+     * 调用次数超过阈值的函数交给JIT编译，为null时只解释执行
+     */
+    private Jit jit = new Jit();
+
+    /**
+     * 循环的每次迭代和每次函数调用算一步
+     */
+    private Budget budget = Budget.unlimited();
+
+    /**
+     * print的输出，执行结束时flush
+     */
+    private Output output = new BufferedOutput();
+
+    public Interpreter() {
+        this(new Globals());
+    }
+
+    /**
+     * 由{@link Program#newContext()}创建，globals使用程序编译时分配的slot
+     */
+    Interpreter(Globals globals) {
+        this.globals = globals;
+    }
+
+    public Globals getGlobals() {
+        return globals;
+    }
+
+    public void setJit(Jit jit) {
+        this.jit = jit;
+    }
+
+    public Budget getBudget() {
+        return budget;
+    }
+
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    public Output getOutput() {
+        return output;
+    }
+
+    public void setOutput(Output output) {
+        this.output = output;
+    }
 
     public void interpret(List<Stmt> stmts) {
+        stmts = new Optimizer().optimize(stmts);
+        int slotCount = new Resolver(globals).resolve(stmts);
+        environment = new Environment(slotCount);
+        try {
+            executeTopLevel(stmts);
+        } finally {
+            output.flush();
+        }
+    }
+
+    /**
+     * 执行编译好的程序，这个Interpreter必须是program.newContext()创建的。
+     * 同一个Program可以同时在多个线程里用各自的Interpreter执行
+     */
+    public void execute(Program program) {
+        if (globals.getLayout() != program.getLayout()) {
+            throw new IllegalArgumentException("interpreter is not a context of this program");
+        }
+        environment = new Environment(program.getSlotCount());
+        try {
+            executeTopLevel(program.getStmts());
+        } finally {
+            output.flush();
+        }
+    }
+
+    /**
+     * 清空上一次执行留下的状态，全局变量恢复成未定义，{@link ScriptExecutor}复用上下文之前调用
+     */
+    void reset() {
+        globals.reset();
+        environment = null;
+        returnValue = null;
+        tailCallee = null;
+        tailFrame = null;
+        tailArgs = null;
+        budget = Budget.unlimited();
+        output = new BufferedOutput();
+    }
+
+    /**
+     * 解析一条顶层语句就执行一条，不用把整个脚本的语法树都放在内存里。
+     * 顶层变量都在globals里，所有语句共用一个Resolver，顶层block里的变量分配的slot也不会重复;
+     * 输出在整个脚本执行完(或者出错)时才flush
+     */
+    public void interpret(Parser parser) {
+        Optimizer optimizer = new Optimizer();
+        Resolver resolver = new Resolver(globals);
+        environment = new Environment(0);
+        try {
+            Stmt stmt;
+            while ((stmt = parser.parseStatement()) != null) {
+                List<Stmt> stmts = optimizer.optimize(Collections.singletonList(stmt));
+                int slotCount = resolver.resolve(stmts);
+                if (slotCount > environment.values.length) {
+                    //前面语句里的闭包可能还引用着旧的栈帧，不能原地扩容; slot不重复，旧的值也不需要复制
+                    environment = new Environment(Math.max(slotCount, environment.values.length * 2));
+                }
+                executeTopLevel(stmts);
+            }
+        } finally {
+            output.flush();
+        }
+    }
+
+    private void executeTopLevel(List<Stmt> stmts) {
         for (Stmt stmt : stmts) {
             stmt.accept(this);
         }
@@ -20,14 +177,204 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
     @Override
     public Object visitAssignExpr(AssignExpr expr) {
         Object value = expr.getValue() == null ? null : evaluate(expr.getValue());
-        this.environment.assign(expr.getToken(), value);
+        if (expr.getDepth() < 0) {
+            globals.assign(expr.getSlot(), expr.getToken(), value);
+        } else {
+            environment.assignAt(expr.getDepth(), expr.getSlot(), value);
+        }
         return value;
     }
 
     @Override
     public Object visitBinaryExpr(BinaryExpr expr) {
+        switch (expr.getSpecialization()) {
+            case ADD_DOUBLE:
+            case SUBTRACT_DOUBLE:
+            case MULTIPLY_DOUBLE:
+            case DIVIDE_DOUBLE:
+                //只在这里装箱一次，子表达式都按double计算
+                try {
+                    return arithmeticDouble(expr);
+                } catch (UnexpectedResultException e) {
+                    return e.result;
+                }
+            case GREATER_DOUBLE:
+            case GREATER_EQUAL_DOUBLE:
+            case LESS_DOUBLE:
+            case LESS_EQUAL_DOUBLE:
+            case EQUAL_DOUBLE:
+            case NOT_EQUAL_DOUBLE:
+                return compareDouble(expr);
+            default:
+                break;
+        }
         Object left = evaluate(expr.getLeft());
         Object right = evaluate(expr.getRight());
+        switch (expr.getSpecialization()) {
+            case CONCAT_STRING:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                return despecialize(expr, left, right);
+            case GENERIC:
+                return binaryGeneric(expr, left, right);
+            default:
+                expr.setSpecialization(specialize(expr.getOperator().type, left, right));
+                return binaryGeneric(expr, left, right);
+        }
+    }
+
+    /**
+     * 数值计算的无装箱路径: 字面量、变量直接拆箱，特化成double运算的BinaryExpr递归按double计算，
+     * 中间结果不再创建Double对象。
+     * 表达式的结果不是数字时抛出UnexpectedResultException，带上已经算出来的值，调用方据此退化，不会重复求值。
+     */
+    private double evaluateDouble(Expr expr) throws UnexpectedResultException {
+        Object value;
+        if (expr instanceof LiteralExpr) {
+            value = ((LiteralExpr) expr).getValue();
+        } else if (expr instanceof VariableExpr) {
+            value = lookUpVariable((VariableExpr) expr);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            switch (binary.getSpecialization()) {
+                case ADD_DOUBLE:
+                case SUBTRACT_DOUBLE:
+                case MULTIPLY_DOUBLE:
+                case DIVIDE_DOUBLE:
+                    return arithmeticDouble(binary);
+                default:
+                    value = evaluate(expr);
+                    break;
+            }
+        } else if (expr instanceof GroupExpr) {
+            return evaluateDouble(((GroupExpr) expr).getExpr());
+        } else if (expr instanceof UnaryExpr && ((UnaryExpr) expr).getOperator().type == TokenType.MINUS) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            try {
+                return -evaluateDouble(unary.getRight());
+            } catch (UnexpectedResultException e) {
+                checkNumberOperand(unary.getOperator(), e.result);
+                throw e;
+            }
+        } else {
+            value = evaluate(expr);
+        }
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    private double arithmeticDouble(BinaryExpr expr) throws UnexpectedResultException {
+        double left;
+        double right;
+        try {
+            left = evaluateDouble(expr.getLeft());
+        } catch (UnexpectedResultException e) {
+            return unbox(despecialize(expr, e.result, evaluate(expr.getRight())));
+        }
+        try {
+            right = evaluateDouble(expr.getRight());
+        } catch (UnexpectedResultException e) {
+            return unbox(despecialize(expr, left, e.result));
+        }
+        switch (expr.getSpecialization()) {
+            case ADD_DOUBLE:
+                return left + right;
+            case SUBTRACT_DOUBLE:
+                return left - right;
+            case MULTIPLY_DOUBLE:
+                return left * right;
+            case DIVIDE_DOUBLE:
+                return left / right;
+            default:
+                //其他线程或者递归调用已经把节点退化了
+                return unbox(binaryGeneric(expr, left, right));
+        }
+    }
+
+    private Object compareDouble(BinaryExpr expr) {
+        double left;
+        double right;
+        try {
+            left = evaluateDouble(expr.getLeft());
+        } catch (UnexpectedResultException e) {
+            return despecialize(expr, e.result, evaluate(expr.getRight()));
+        }
+        try {
+            right = evaluateDouble(expr.getRight());
+        } catch (UnexpectedResultException e) {
+            return despecialize(expr, left, e.result);
+        }
+        switch (expr.getSpecialization()) {
+            case GREATER_DOUBLE:
+                return left > right;
+            case GREATER_EQUAL_DOUBLE:
+                return left >= right;
+            case LESS_DOUBLE:
+                return left < right;
+            case LESS_EQUAL_DOUBLE:
+                return left <= right;
+            case EQUAL_DOUBLE:
+                //和Double.equals的语义一致: NaN等于NaN, 0.0不等于-0.0
+                return Double.compare(left, right) == 0;
+            case NOT_EQUAL_DOUBLE:
+                return Double.compare(left, right) != 0;
+            default:
+                return binaryGeneric(expr, left, right);
+        }
+    }
+
+    /**
+     * 操作数类型和特化时不一样，退化成通用版本，不再重新特化
+     */
+    private Object despecialize(BinaryExpr expr, Object left, Object right) {
+        expr.setSpecialization(BinaryExpr.Specialization.GENERIC);
+        return binaryGeneric(expr, left, right);
+    }
+
+    private static double unbox(Object value) throws UnexpectedResultException {
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    private BinaryExpr.Specialization specialize(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS:
+                    return BinaryExpr.Specialization.ADD_DOUBLE;
+                case MINUS:
+                    return BinaryExpr.Specialization.SUBTRACT_DOUBLE;
+                case STAR:
+                    return BinaryExpr.Specialization.MULTIPLY_DOUBLE;
+                case SLASH:
+                    return BinaryExpr.Specialization.DIVIDE_DOUBLE;
+                case GREATER:
+                    return BinaryExpr.Specialization.GREATER_DOUBLE;
+                case GREATER_EQUAL:
+                    return BinaryExpr.Specialization.GREATER_EQUAL_DOUBLE;
+                case LESS:
+                    return BinaryExpr.Specialization.LESS_DOUBLE;
+                case LESS_EQUAL:
+                    return BinaryExpr.Specialization.LESS_EQUAL_DOUBLE;
+                case EQUAL_EQUAL:
+                    return BinaryExpr.Specialization.EQUAL_DOUBLE;
+                case BANG_EQUAL:
+                    return BinaryExpr.Specialization.NOT_EQUAL_DOUBLE;
+                default:
+                    return BinaryExpr.Specialization.GENERIC;
+            }
+        }
+        if (left instanceof String && right instanceof String && operator == TokenType.PLUS) {
+            return BinaryExpr.Specialization.CONCAT_STRING;
+        }
+        return BinaryExpr.Specialization.GENERIC;
+    }
+
+    private Object binaryGeneric(BinaryExpr expr, Object left, Object right) {
         switch (expr.getOperator().type) {
             case MINUS:
                 checkNumberOperand(expr.getOperator(), left, right);
@@ -69,12 +416,116 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
 
     @Override
     public Object visitCallExpr(CallExpr expr) {
-        return null;
+        return invoke(expr, evaluate(expr.getCallee()));
+    }
+
+    private Object invoke(CallExpr expr, Object callee) {
+        List<Expr> arguments = expr.getArguments();
+        if (callee instanceof MiniFunction) {
+            MiniFunction function = (MiniFunction) callee;
+            FunctionStmt declaration = function.declaration;
+            checkArity(expr, function.arity(), arguments.size());
+            if (compiledCode(function) != null) {
+                return callCompiled(function, evaluateArguments(arguments));
+            }
+            return executeFunction(declaration, newFrame(function, arguments));
+        }
+        if (callee instanceof MiniCallable) {
+            MiniCallable callable = (MiniCallable) callee;
+            checkArity(expr, callable.arity(), arguments.size());
+            return callable.call(this, evaluateArguments(arguments));
+        }
+        throw new RuntimeException(expr.getParen() + " can only call functions");
+    }
+
+    /**
+     * 给JIT生成的代码用，参数个数不对时抛出异常
+     *
+     * @param paren 调用的右括号Token.toString()，报错信息和解释执行一致
+     */
+    public Object call(Object callee, Object[] args, String paren) {
+        MiniCallable callable = checkCallable(callee, args, paren);
+        if (callable instanceof MiniFunction) {
+            compiledCode((MiniFunction) callable);
+        }
+        return callable.call(this, args);
+    }
+
+    /**
+     * 给JIT生成的代码用，return f(...)不直接调用，记下callee和参数后返回TAIL_CALL，由调用方的循环执行
+     */
+    public Object tailCall(Object callee, Object[] args, String paren) {
+        MiniCallable callable = checkCallable(callee, args, paren);
+        if (callable instanceof MiniFunction && compiledCode((MiniFunction) callable) == null) {
+            MiniFunction function = (MiniFunction) callable;
+            tailFrame = new Environment(function.declaration.getSlotCount(), function.closure);
+            System.arraycopy(args, 0, tailFrame.values, 0, args.length);
+        } else {
+            tailArgs = args;
+        }
+        tailCallee = callable;
+        return TAIL_CALL;
+    }
+
+    private static MiniCallable checkCallable(Object callee, Object[] args, String paren) {
+        if (!(callee instanceof MiniCallable)) {
+            throw new RuntimeException(paren + " can only call functions");
+        }
+        MiniCallable callable = (MiniCallable) callee;
+        if (callable.arity() != args.length) {
+            throw new RuntimeException(paren + " expected " + callable.arity() + " arguments but got " + args.length);
+        }
+        return callable;
+    }
+
+    /**
+     * 实参直接求值到新栈帧里，不需要中间的参数数组
+     */
+    private Environment newFrame(MiniFunction function, List<Expr> arguments) {
+        Environment frame = new Environment(function.declaration.getSlotCount(), function.closure);
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.values[i] = evaluate(arguments.get(i));
+        }
+        return frame;
+    }
+
+    /**
+     * 调用次数按FunctionStmt统计，循环里每次新建的闭包、新的执行上下文都累加到同一个计数上
+     */
+    private CompiledFunction compiledCode(MiniFunction function) {
+        if (function.compiled == null && !function.jitChecked && jit != null) {
+            FunctionStmt declaration = function.declaration;
+            int calls = declaration.getCalls() + 1;
+            declaration.setCalls(calls);
+            if (calls >= jit.getThreshold()) {
+                checkJit(function);
+            }
+        }
+        return function.compiled;
+    }
+
+    private void checkJit(MiniFunction function) {
+        function.compiled = jit.compile(function.declaration);
+        function.jitChecked = true;
+    }
+
+    private Object[] evaluateArguments(List<Expr> arguments) {
+        Object[] args = new Object[arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = evaluate(arguments.get(i));
+        }
+        return args;
+    }
+
+    private static void checkArity(CallExpr expr, int arity, int count) {
+        if (arity != count) {
+            throw new RuntimeException(expr.getParen() + " expected " + arity + " arguments but got " + count);
+        }
     }
 
     @Override
     public Object visitGroupingExpr(GroupExpr expr) {
-        return evaluate(expr);
+        return evaluate(expr.getExpr());
     }
 
     @Override
@@ -99,33 +550,68 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
 
     @Override
     public Object visitUnaryExpr(UnaryExpr expr) {
-        //不支持
-        return null;
+        Object right = evaluate(expr.getRight());
+        switch (expr.getOperator().type) {
+            case MINUS:
+                checkNumberOperand(expr.getOperator(), right);
+                return -(double) right;
+            case BANG:
+                return !isTruthy(right);
+            default:
+                return null;
+        }
     }
 
     @Override
     public Object visitVariableExpr(VariableExpr expr) {
-        return environment.get(expr.getName());
+        return lookUpVariable(expr);
     }
 
     @Override
     public Object visitIfStmt(IfStmt stmt) {
         Object value = evaluate(stmt.getExpr());
         if (isTruthy(value)) {
-            execute(stmt.getThenBranch());
+            return execute(stmt.getThenBranch());
         } else if (stmt.getElseBranch() != null) {
-            execute(stmt.getElseBranch());
+            return execute(stmt.getElseBranch());
         }
         return null;
     }
 
     @Override
     public Object visitBlockStmt(BlockStmt stmt) {
-        List<Stmt> statements = stmt.getStmts();
-        executeBlock(statements, new Environment(this.environment));
+        if (stmt.getSlotCount() > 0) {
+            return executeBlock(stmt);
+        }
+        //block内的变量已经由Resolver分配在当前帧里，不需要新建Environment
+        for (Stmt s : stmt.getStmts()) {
+            Object completion = execute(s);
+            if (completion != null) {
+                return completion;
+            }
+        }
         return null;
     }
 
+    /**
+     * 循环里被闭包捕获的block，每次执行都是新的变量
+     */
+    private Object executeBlock(BlockStmt stmt) {
+        Environment previous = this.environment;
+        try {
+            this.environment = new Environment(stmt.getSlotCount(), previous);
+            for (Stmt s : stmt.getStmts()) {
+                Object completion = execute(s);
+                if (completion != null) {
+                    return completion;
+                }
+            }
+            return null;
+        } finally {
+            this.environment = previous;
+        }
+    }
+
     @Override
     public Object visitExprStmt(ExprStmt stmt) {
         evaluate(stmt.getExpr());
@@ -134,14 +620,23 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
 
     @Override
     public Object visitFunctionStmt(FunctionStmt stmt) {
-        //不支持
+        MiniFunction function = new MiniFunction(stmt, environment);
+        //声明已经是热点，直接用编译好的代码，不用再解释执行到阈值
+        if (jit != null && stmt.getCalls() >= jit.getThreshold()) {
+            checkJit(function);
+        }
+        if (stmt.getDepth() < 0) {
+            globals.define(stmt.getSlot(), stmt.getName(), function);
+        } else {
+            environment.set(stmt.getSlot(), function);
+        }
         return null;
     }
 
     @Override
     public Object visitPrintStmt(PrintStmt stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringfy(value));
+        output.println(stringfy(value));
         return null;
     }
 
@@ -151,7 +646,11 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
         if (stmt.getExpr() != null) {
             value = evaluate(stmt.getExpr());
         }
-        environment.define(stmt.getName(), value);
+        if (stmt.getDepth() < 0) {
+            globals.define(stmt.getSlot(), stmt.getName(), value);
+        } else {
+            environment.set(stmt.getSlot(), value);
+        }
         return null;
     }
 
@@ -159,7 +658,11 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
     public Object visitWhileStmt(WhileStmt stmt) {
         Object value = evaluate(stmt.getCondition());
         while (isTruthy(value)) {
-            stmt.getBody().accept(this);
+            Object completion = execute(stmt.getBody());
+            if (completion != null) {
+                return completion;
+            }
+            budget.tick();
             value = evaluate(stmt.getCondition());
         }
         return null;
@@ -167,8 +670,25 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
 
     @Override
     public Object visitReturnStmt(ReturnStmt stmt) {
-        //不支持
-        return null;
+        if (stmt.getValue() instanceof CallExpr && ((CallExpr) stmt.getValue()).isTailCall()) {
+            CallExpr call = (CallExpr) stmt.getValue();
+            Object callee = evaluate(call.getCallee());
+            if (!(callee instanceof MiniCallable)) {
+                throw new RuntimeException(call.getParen() + " can only call functions");
+            }
+            MiniCallable callable = (MiniCallable) callee;
+            checkArity(call, callable.arity(), call.getArguments().size());
+            //当前函数的栈帧不再需要，被调用的函数由调用方的runTailCalls执行
+            if (callable instanceof MiniFunction && compiledCode((MiniFunction) callable) == null) {
+                tailFrame = newFrame((MiniFunction) callable, call.getArguments());
+            } else {
+                tailArgs = evaluateArguments(call.getArguments());
+            }
+            tailCallee = callable;
+            return TAIL_CALL;
+        }
+        returnValue = stmt.getValue() == null ? null : evaluate(stmt.getValue());
+        return RETURN;
     }
 
     private Object evaluate(Expr expr) {
@@ -176,17 +696,21 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
     }
 
     private boolean isTruthy(Object object) {
-        if (object == null) {
-            return false;
-        }
-        if (object instanceof Boolean) {
-            return (boolean) object;
+        return Values.isTruthy(object);
+    }
+
+    private Object lookUpVariable(VariableExpr expr) {
+        if (expr.getDepth() < 0) {
+            return globals.get(expr.getSlot(), expr.getName());
         }
-        return true;
+        return environment.getAt(expr.getDepth(), expr.getSlot());
     }
 
-    private Object lookUpVariable(Token name) {
-        return environment.get(name);
+    private void checkNumberOperand(Token operator, Object operand) {
+        if (operand instanceof Double) {
+            return;
+        }
+        throw new RuntimeException(operator + " Operator must be a number!");
     }
 
     private void checkNumberOperand(Token operator, Object left, Object right) {
@@ -197,42 +721,80 @@ public class Interpreter implements ExprVisitor, StmtVisitor {
     }
 
     private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) {
-            return true;
-        }
-        if (a == null) {
-            return false;
-        }
-        return a.equals(b);
+        return Values.isEqual(a, b);
+    }
+
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /**
+     * 在frame里执行函数体，frame的大小是FunctionStmt.slotCount，参数已经放在前面的slot里
+     */
+    Object executeFunction(FunctionStmt function, Environment frame) {
+        Object result = executeBody(function, frame);
+        return result == TAIL_CALL ? runTailCalls() : result;
+    }
+
+    Object callCompiled(MiniFunction function, Object[] args) {
+        budget.tick();
+        Object result = function.compiled.call(this, function.closure, args);
+        return result == TAIL_CALL ? runTailCalls() : result;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    /**
+     * 依次执行尾调用，直到某个函数正常返回。不管尾调用链有多长，Java栈只有这一层
+     */
+    private Object runTailCalls() {
+        for (;;) {
+            Object callee = tailCallee;
+            Environment frame = tailFrame;
+            Object[] args = tailArgs;
+            tailCallee = null;
+            tailFrame = null;
+            tailArgs = null;
+            Object result;
+            if (frame != null) {
+                result = executeBody(((MiniFunction) callee).declaration, frame);
+            } else if (callee instanceof MiniFunction) {
+                MiniFunction function = (MiniFunction) callee;
+                budget.tick();
+                result = function.compiled.call(this, function.closure, args);
+            } else {
+                result = ((MiniCallable) callee).call(this, args);
+            }
+            if (result != TAIL_CALL) {
+                return result;
+            }
+        }
     }
 
-    void executeBlock(List<Stmt> stmts, Environment environment) {
+    /**
+     * 返回函数的返回值，或者以尾调用结束时返回TAIL_CALL
+     */
+    private Object executeBody(FunctionStmt function, Environment frame) {
+        budget.tick();
         Environment previous = this.environment;
         try {
-            this.environment = environment;
-            for (Stmt stmt : stmts) {
-                execute(stmt);
+            this.environment = frame;
+            for (Stmt stmt : function.getBody()) {
+                Object completion = execute(stmt);
+                if (completion == RETURN) {
+                    Object value = returnValue;
+                    returnValue = null;
+                    return value;
+                }
+                if (completion == TAIL_CALL) {
+                    return TAIL_CALL;
+                }
             }
+            return null;
         } finally {
             this.environment = previous;
         }
     }
 
     private String stringfy(Object object) {
-        if (object == null) {
-            return "nil";
-        }
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
-        return object.toString();
+        return Values.stringfy(object);
     }
 }
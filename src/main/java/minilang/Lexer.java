@@ -38,39 +38,16 @@ import static minilang.TokenType.TRUE;
 import static minilang.TokenType.VAR;
 import static minilang.TokenType.WHILE;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author tianbing <tianbing@kuaishou.com>
  * Created on 2023-06-07
  */
 public class Lexer {
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("or", OR);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
-
-    private final String source;
+    private final CharSequence source;
 
-    private final List<Token> tokens = new ArrayList<>();
+    private final TokenBuffer tokens;
 
     private int start = 0;
     private int current = 0;
@@ -78,21 +55,60 @@ public class Lexer {
 
     private int column = 0;
 
-    public Lexer(String source) {
+    /**
+     * 流式读取时不为null，源码不够时从这里继续读
+     */
+    private final ReaderCharSequence reader;
+
+    private boolean done;
+
+    public Lexer(CharSequence source) {
+        this(source, new TokenBuffer(source));
+    }
+
+    Lexer(CharSequence source, TokenBuffer tokens) {
         this.source = source;
+        this.tokens = tokens;
+        this.reader = source instanceof ReaderCharSequence ? (ReaderCharSequence) source : null;
     }
 
     public List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        return scan().toTokens();
+    }
+
+    public TokenBuffer scan() {
+        while (scanNext()) {
+            //一次扫描一个token，直到EOF
+        }
+        return tokens;
+    }
+
+    /**
+     * 扫描出下一个token(最后是EOF)放进TokenBuffer, EOF之后返回false
+     */
+    boolean scanNext() {
+        if (done) {
+            return false;
+        }
+        int size = tokens.size();
+        while (tokens.size() == size) {
+            if (isAtEnd()) {
+                tokens.add(EOF, current, 0, line, column);
+                done = true;
+                break;
+            }
             start = current;
             scanToken();
         }
-        tokens.add(new Token(EOF, "", null, line, column));
-        return tokens;
+        return true;
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !hasChar(current);
+    }
+
+    private boolean hasChar(int index) {
+        return index < source.length() || reader != null && reader.fill(index);
     }
 
     private void scanToken() {
@@ -188,13 +204,11 @@ public class Lexer {
         return ch;
     }
 
+    /**
+     * 不截取文本，只记录位置，字面量由TokenBuffer按需解析
+     */
     private void addToken(TokenType tokenType) {
-        addToken(tokenType, null);
-    }
-
-    private void addToken(TokenType tokenType, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(tokenType, text, literal, line, column));
+        tokens.add(tokenType, start, current - start, line, column);
     }
 
     boolean match(char expected) {
@@ -222,8 +236,7 @@ public class Lexer {
         }
         advance();
 
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        addToken(STRING);
     }
 
     private boolean isDigit(char c) {
@@ -240,11 +253,11 @@ public class Lexer {
         while (isDigit(peek())) {
             advance();
         }
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) {
+        if (!hasChar(current + 1)) {
             return '\0';
         }
         return source.charAt(current + 1);
@@ -263,12 +276,69 @@ public class Lexer {
             advance();
         }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type != null) {
-            addToken(type);
-        } else {
-            addToken(IDENTIFIER);
+        addToken(keyword());
+    }
+
+    /**
+     * 按首字母和长度判断是不是关键字，直接比较源码里的字符，不截取字符串
+     */
+    private TokenType keyword() {
+        int length = current - start;
+        switch (source.charAt(start)) {
+            case 'a':
+                return rest(length, AND);
+            case 'c':
+                return rest(length, CLASS);
+            case 'e':
+                return rest(length, ELSE);
+            case 'f':
+                if (length > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a':
+                            return rest(length, FALSE);
+                        case 'o':
+                            return rest(length, FOR);
+                        case 'u':
+                            return rest(length, FUN);
+                        default:
+                            break;
+                    }
+                }
+                return IDENTIFIER;
+            case 'i':
+                return rest(length, IF);
+            case 'n':
+                return rest(length, NIL);
+            case 'o':
+                return rest(length, OR);
+            case 'p':
+                return rest(length, PRINT);
+            case 'r':
+                return rest(length, RETURN);
+            case 't':
+                return rest(length, TRUE);
+            case 'v':
+                return rest(length, VAR);
+            case 'w':
+                return rest(length, WHILE);
+            default:
+                return IDENTIFIER;
+        }
+    }
+
+    /**
+     * 首字母已经匹配，比较长度和剩下的字符
+     */
+    private TokenType rest(int length, TokenType keyword) {
+        String text = keyword.lexeme;
+        if (text.length() != length) {
+            return IDENTIFIER;
+        }
+        for (int i = 1; i < length; i++) {
+            if (source.charAt(start + i) != text.charAt(i)) {
+                return IDENTIFIER;
+            }
         }
+        return keyword;
     }
 }
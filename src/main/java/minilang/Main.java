@@ -1,11 +1,92 @@
 package minilang;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import minilang.jit.Jit;
+import minilang.vm.VM;
+
 /**
+ * 命令行入口: minilang [--vm] [--nojit] [--cache dir] [--timing] [--max-steps n] [--timeout ms] script...
+ * 脚本文件通过{@link MappedSource}映射到内存，直接在UTF-8字节上做词法分析。
+ * 多个脚本由{@link BundleLoader}并行加载，按参数顺序合并成一个程序执行，--timing打印加载耗时。
+ * --max-steps和--timeout限制执行的步数和时间(见{@link Budget})。
+ * 默认用Interpreter执行，--vm用字节码VM执行，--nojit关闭Interpreter的JIT，
+ * --cache把解析结果缓存到dir下(见{@link AstCache})，源码不变时下次启动不再解析。
+ *
  * @author tianbing <tianbing@kuaishou.com>
  * Created on 2023-06-07
  */
 public class Main {
+
     public static void main(String[] args) {
-        System.out.println("Hello world!");
+        boolean vm = false;
+        boolean jit = true;
+        boolean timing = false;
+        long maxSteps = Budget.UNLIMITED;
+        long timeoutMillis = Budget.UNLIMITED;
+        Path cacheDir = null;
+        List<Path> scripts = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--vm".equals(arg)) {
+                vm = true;
+            } else if ("--nojit".equals(arg)) {
+                jit = false;
+            } else if ("--timing".equals(arg)) {
+                timing = true;
+            } else if ("--max-steps".equals(arg) && i + 1 < args.length) {
+                maxSteps = Long.parseLong(args[++i]);
+            } else if ("--timeout".equals(arg) && i + 1 < args.length) {
+                timeoutMillis = Long.parseLong(args[++i]);
+            } else if ("--cache".equals(arg) && i + 1 < args.length) {
+                cacheDir = Paths.get(args[++i]);
+            } else if (!arg.startsWith("--")) {
+                scripts.add(Paths.get(arg));
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (scripts.isEmpty()) {
+            usage();
+            return;
+        }
+
+        try {
+            AstCache cache = cacheDir == null ? null : new AstCache(cacheDir);
+            Bundle bundle = new BundleLoader(ForkJoinPool.commonPool(), cache).load(scripts);
+            if (timing) {
+                System.err.println(bundle);
+            }
+            List<Stmt> stmts = bundle.getStmts();
+            Budget budget = new Budget(maxSteps, timeoutMillis);
+            if (vm) {
+                VM machine = new VM();
+                machine.setBudget(budget);
+                machine.interpret(stmts);
+            } else {
+                Program program = Program.compile(stmts, jit ? new Jit() : null);
+                Interpreter context = program.newContext();
+                context.setBudget(budget);
+                context.execute(program);
+            }
+        } catch (IOException e) {
+            System.err.println("cannot read script: " + e.getMessage());
+            System.exit(74);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(70);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: minilang [--vm] [--nojit] [--cache dir] [--timing]"
+                + " [--max-steps n] [--timeout ms] script...");
+        System.exit(64);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,74 @@
+package minilang;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 用FileChannel.map映射的UTF-8源文件，Lexer直接在字节上扫描，不需要先解码成String。
+ * 下标是字节位置，charAt返回单个字节: 语法里的符号、关键字、标识符都是ASCII，
+ * 多字节字符只会出现在字符串里，subSequence截取的时候才按UTF-8解码。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-14
+ */
+public class MappedSource implements CharSequence {
+
+    private final ByteBuffer bytes;
+
+    private MappedSource(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    public static MappedSource map(Path path) throws IOException {
+        return new MappedSource(mapFile(path));
+    }
+
+    static MappedByteBuffer mapFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + path + " (" + size + " bytes)");
+            }
+            //映射建立之后关闭channel不影响访问
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * 整个文件的字节，和源码共享同一块映射
+     */
+    ByteBuffer getBytes() {
+        return bytes.duplicate();
+    }
+
+    @Override
+    public int length() {
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        byte[] range = new byte[end - start];
+        ByteBuffer view = bytes.duplicate();
+        //转成Buffer调用，编译出的代码在Java 8上也能运行
+        ((Buffer) view).position(start);
+        view.get(range);
+        return new String(range, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
@@ -0,0 +1,17 @@
+package minilang;
+
+/**
+ * 可以被调用的值: 脚本里定义的函数，以及宿主提供的原生函数
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-07-16
+ */
+public interface MiniCallable {
+
+    int arity();
+
+    /**
+     * @param args 实参，个数已经由调用方检查过
+     */
+    Object call(Interpreter interpreter, Object[] args);
+}
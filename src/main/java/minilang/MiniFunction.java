@@ -0,0 +1,61 @@
+package minilang;
+
+import minilang.jit.CompiledFunction;
+
+/**
+ * 脚本里定义的函数，运行时的值。
+ * closure是函数定义时所在的栈帧，调用时新建的栈帧以它为parent。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-07-16
+ */
+public class MiniFunction implements MiniCallable {
+
+    final FunctionStmt declaration;
+
+    final Environment closure;
+
+    CompiledFunction compiled;
+
+    /**
+     * 已经向JIT要过编译结果，编译不了的函数不再重复尝试
+     */
+    boolean jitChecked;
+
+    MiniFunction(FunctionStmt declaration, Environment closure) {
+        this.declaration = declaration;
+        this.closure = closure;
+    }
+
+    public FunctionStmt getDeclaration() {
+        return declaration;
+    }
+
+    public Environment getClosure() {
+        return closure;
+    }
+
+    public CompiledFunction getCompiled() {
+        return compiled;
+    }
+
+    @Override
+    public int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] args) {
+        if (compiled != null) {
+            return interpreter.callCompiled(this, args);
+        }
+        Environment frame = new Environment(declaration.getSlotCount(), closure);
+        System.arraycopy(args, 0, frame.values, 0, args.length);
+        return interpreter.executeFunction(declaration, frame);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name.getLexeme() + ">";
+    }
+}
@@ -0,0 +1,243 @@
+package minilang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 执行前对语法树做一遍优化，在Resolver之前执行:
+ * 1. 常量折叠: 操作数都是字面量的BinaryExpr/LogicalExpr/UnaryExpr直接算出结果;
+ * 2. 去掉多余的GroupExpr，括号只在Parser里决定结合顺序，执行时没有意义;
+ * 3. 条件是常量的if/while只保留会执行的分支, if (!c) a else b 改写成 if (c) b else a。
+ * <p>
+ * 运行时会报错的表达式(比如 1 + "a")不折叠，保留到运行时报错。
+ * x * 1、x + 0这类恒等变换也不做，x不是数字时原来会报错，化简之后就不报错了，-0.0 + 0的结果也不一样。
+ * <p>
+ * visit方法返回替换后的节点，容器节点原地修改; 语句返回null表示删除。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-07-09
+ */
+public class Optimizer implements ExprVisitor, StmtVisitor {
+
+    private static final Object NOT_CONSTANT = new Object();
+
+    public List<Stmt> optimize(List<Stmt> stmts) {
+        List<Stmt> result = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            Stmt optimized = optimizeStmt(stmt);
+            if (optimized != null) {
+                result.add(optimized);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object visitAssignExpr(AssignExpr expr) {
+        expr.setValue(optimize(expr.getValue()));
+        return expr;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr) {
+        expr.setLeft(optimize(expr.getLeft()));
+        expr.setRight(optimize(expr.getRight()));
+        if (expr.getLeft() instanceof LiteralExpr && expr.getRight() instanceof LiteralExpr) {
+            Object value = fold(expr.getOperator().type,
+                    ((LiteralExpr) expr.getLeft()).getValue(), ((LiteralExpr) expr.getRight()).getValue());
+            if (value != NOT_CONSTANT) {
+                return new LiteralExpr(value);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr) {
+        expr.setCallee(optimize(expr.getCallee()));
+        List<Expr> arguments = new ArrayList<>(expr.getArguments().size());
+        for (Expr argument : expr.getArguments()) {
+            arguments.add(optimize(argument));
+        }
+        expr.setArguments(arguments);
+        return expr;
+    }
+
+    @Override
+    public Object visitGroupingExpr(GroupExpr expr) {
+        return optimize(expr.getExpr());
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr) {
+        return expr;
+    }
+
+    @Override
+    public Object visitLogicalExpr(LogicalExpr expr) {
+        expr.setLeft(optimize(expr.getLeft()));
+        expr.setRight(optimize(expr.getRight()));
+        if (expr.getLeft() instanceof LiteralExpr) {
+            boolean truthy = Values.isTruthy(((LiteralExpr) expr.getLeft()).getValue());
+            boolean shortCircuit = expr.getOperator().type == TokenType.OR ? truthy : !truthy;
+            //短路时结果是左边的值，否则是右边的值
+            return shortCircuit ? expr.getLeft() : expr.getRight();
+        }
+        return expr;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr) {
+        expr.setRight(optimize(expr.getRight()));
+        if (expr.getRight() instanceof LiteralExpr) {
+            Object value = ((LiteralExpr) expr.getRight()).getValue();
+            if (expr.getOperator().type == TokenType.BANG) {
+                return new LiteralExpr(!Values.isTruthy(value));
+            }
+            if (value instanceof Double) {
+                return new LiteralExpr(-(double) value);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public Object visitVariableExpr(VariableExpr expr) {
+        return expr;
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt) {
+        Expr condition = optimize(stmt.getExpr());
+        Stmt thenBranch = optimizeStmt(stmt.getThenBranch());
+        Stmt elseBranch = stmt.getElseBranch() == null ? null : optimizeStmt(stmt.getElseBranch());
+        if (condition instanceof LiteralExpr) {
+            return Values.isTruthy(((LiteralExpr) condition).getValue()) ? thenBranch : elseBranch;
+        }
+        if (condition instanceof UnaryExpr && ((UnaryExpr) condition).getOperator().type == TokenType.BANG
+                && elseBranch != null && thenBranch != null) {
+            condition = ((UnaryExpr) condition).getRight();
+            Stmt swap = thenBranch;
+            thenBranch = elseBranch;
+            elseBranch = swap;
+        }
+        stmt.setExpr(condition);
+        stmt.setThenBranch(thenBranch == null ? emptyBlock() : thenBranch);
+        stmt.setElseBranch(elseBranch);
+        return stmt;
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt) {
+        stmt.setStmts(optimize(stmt.getStmts()));
+        return stmt;
+    }
+
+    @Override
+    public Object visitExprStmt(ExprStmt stmt) {
+        Expr expr = optimize(stmt.getExpr());
+        if (expr instanceof LiteralExpr) {
+            //没有副作用的语句
+            return null;
+        }
+        stmt.setExpr(expr);
+        return stmt;
+    }
+
+    @Override
+    public Object visitFunctionStmt(FunctionStmt stmt) {
+        stmt.setBody(optimize(stmt.getBody()));
+        return stmt;
+    }
+
+    @Override
+    public Object visitPrintStmt(PrintStmt stmt) {
+        stmt.setExpression(optimize(stmt.getExpression()));
+        return stmt;
+    }
+
+    @Override
+    public Object visitVarStmt(VarStmt stmt) {
+        if (stmt.getExpr() != null) {
+            stmt.setExpr(optimize(stmt.getExpr()));
+        }
+        return stmt;
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt) {
+        Expr condition = optimize(stmt.getCondition());
+        if (condition instanceof LiteralExpr && !Values.isTruthy(((LiteralExpr) condition).getValue())) {
+            return null;
+        }
+        Stmt body = optimizeStmt(stmt.getBody());
+        stmt.setCondition(condition);
+        stmt.setBody(body == null ? emptyBlock() : body);
+        return stmt;
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt) {
+        if (stmt.getValue() != null) {
+            stmt.setValue(optimize(stmt.getValue()));
+        }
+        return stmt;
+    }
+
+    private Expr optimize(Expr expr) {
+        return (Expr) expr.accept(this);
+    }
+
+    private Stmt optimizeStmt(Stmt stmt) {
+        return (Stmt) stmt.accept(this);
+    }
+
+    private static BlockStmt emptyBlock() {
+        return new BlockStmt(Collections.emptyList());
+    }
+
+    /**
+     * 和Interpreter的语义保持一致，类型不对的时候不折叠
+     */
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case BANG_EQUAL:
+                return !Values.isEqual(left, right);
+            case EQUAL_EQUAL:
+                return Values.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                break;
+            default:
+                break;
+        }
+        if (!(left instanceof Double) || !(right instanceof Double)) {
+            return NOT_CONSTANT;
+        }
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator) {
+            case PLUS:
+                return a + b;
+            case MINUS:
+                return a - b;
+            case STAR:
+                return a * b;
+            case SLASH:
+                return a / b;
+            case GREATER:
+                return a > b;
+            case GREATER_EQUAL:
+                return a >= b;
+            case LESS:
+                return a < b;
+            case LESS_EQUAL:
+                return a <= b;
+            default:
+                return NOT_CONSTANT;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package minilang;
+
+/**
+ * print语句的输出目标，每次执行使用自己的Output。
+ * 执行引擎在脚本结束(包括报错)时调用{@link #flush()}，实现可以在这之前任意缓冲。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-22
+ */
+public interface Output {
+
+    void println(String text);
+
+    void flush();
+}
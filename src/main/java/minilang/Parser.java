@@ -17,11 +17,15 @@ public class Parser {
         }
     }
 
-    private final List<Token> tokens;
+    private final TokenSource tokens;
 
     private int current = 0;
 
     public Parser(List<Token> tokens) {
+        this(TokenBuffer.of(tokens));
+    }
+
+    public Parser(TokenSource tokens) {
         this.tokens = tokens;
     }
 
@@ -33,6 +37,16 @@ public class Parser {
         return statements;
     }
 
+    /**
+     * 只解析下一条顶层语句，到结尾时返回null; 配合{@link TokenStream}可以边解析边执行
+     */
+    public Stmt parseStatement() {
+        if (isAtEnd()) {
+            return null;
+        }
+        return declaration();
+    }
+
 
     public Expr expression() {
         return assignment();
@@ -46,7 +60,7 @@ public class Parser {
      * @return
      */
     Expr assignment() {
-        Expr expr = or();
+        Expr expr = binary();
         //assignment
         if (match(TokenType.EQUAL)) {
             Token equals = previous();
@@ -60,26 +74,6 @@ public class Parser {
         return expr;
     }
 
-    Expr or() {
-        Expr expr = and();
-        while (match(TokenType.OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new LogicalExpr(expr, operator, right);
-        }
-        return expr;
-    }
-
-    Expr and() {
-        Expr expr = equality();
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new LogicalExpr(expr, operator, right);
-        }
-        return expr;
-    }
-
     private Stmt declaration() {
         if (match(TokenType.VAR)) {
             return varDeclaration();
@@ -92,7 +86,7 @@ public class Parser {
 
     private FunctionStmt function(String kind) {
         Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
-        consume(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
@@ -103,8 +97,8 @@ public class Parser {
             }
             while (match(TokenType.COMMA));
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
         List<Stmt> body = block();
         return new FunctionStmt(name, parameters, body);
     }
@@ -115,7 +109,7 @@ public class Parser {
         if (match(TokenType.EQUAL)) {
             initializer = expression();
         }
-        consume(TokenType.SEMISOLON, "Expect ';'");
+        expect(TokenType.SEMISOLON, "Expect ';'");
         return new VarStmt(name, initializer);
     }
 
@@ -148,12 +142,12 @@ public class Parser {
         if (!check(TokenType.SEMISOLON)) {
             value = expression();
         }
-        consume(TokenType.SEMISOLON, "Expect ';' after return value.");
+        expect(TokenType.SEMISOLON, "Expect ';' after return value.");
         return new ReturnStmt(keyword, value);
     }
 
     private Stmt forStatement() {
-        consume(TokenType.LEFT_PAREN, "expect '(' after 'for'.");
+        expect(TokenType.LEFT_PAREN, "expect '(' after 'for'.");
         Stmt initializer;
         if (match(TokenType.SEMISOLON)) {
             initializer = null;
@@ -167,13 +161,13 @@ public class Parser {
         if (!check(TokenType.SEMISOLON)) {
             condition = expression();
         }
-        consume(TokenType.SEMISOLON, "expect ';' after loop condition");
+        expect(TokenType.SEMISOLON, "expect ';' after loop condition");
 
         Expr increment = null;
         if (!check(TokenType.RIGHT_PAREN)) {
             increment = expression();
         }
-        consume(TokenType.RIGHT_PAREN, "expect ')' after for clauses.");
+        expect(TokenType.RIGHT_PAREN, "expect ')' after for clauses.");
 
         Stmt body = statement();
 
@@ -192,17 +186,17 @@ public class Parser {
     }
 
     private Stmt whileStmtment() {
-        consume(TokenType.LEFT_PAREN, "expect '(' after while");
+        expect(TokenType.LEFT_PAREN, "expect '(' after while");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "expect ')' after while condition");
+        expect(TokenType.RIGHT_PAREN, "expect ')' after while condition");
         Stmt stmt = statement();
         return new WhileStmt(condition, stmt);
     }
 
     private Stmt ifStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after if");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after if");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after if condition");
 
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
@@ -217,86 +211,113 @@ public class Parser {
         while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
             statements.add(declaration());
         }
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        expect(TokenType.RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
 
     private Stmt printStatement() {
         Expr value = expression();
-        consume(TokenType.SEMISOLON, "Expect ';' after value.");
+        expect(TokenType.SEMISOLON, "Expect ';' after value.");
         return new PrintStmt(value);
     }
 
     private Stmt expressionStatement() {
         Expr value = expression();
-        consume(TokenType.SEMISOLON, "Expect ';' after value.");
+        expect(TokenType.SEMISOLON, "Expect ';' after value.");
         return new ExprStmt(value);
     }
 
 
-    private Expr equality() {
-        Expr expr = comparison();
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new BinaryExpr(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr comparison() {
-        Expr expr = term();
-        while (match(TokenType.GREATER, TokenType.LESS, TokenType.GREATER_EQUAL, TokenType.LESS_EQUAL)) {
-            Token opertor = previous();
-            Expr right = term();
-            expr = new BinaryExpr(expr, opertor, right);
-        }
-        return expr;
-    }
-
     /**
+     * 二元运算符(or, and, 比较, 加减乘除)用算符优先法解析，操作数和操作符各放在一个栈里，不递归。
      * 1.怎么处理优先级
-     * 这里是处理加法和乘法的优先级问题，左右子树表达式求值都是用的factor()，优先对优先级更高的乘法进行求值;
+     * 读到一个操作符时，先把栈顶优先级不低于它的操作符和两个操作数归约成一个节点，再把它压栈;
+     * 优先级高的操作符先归约，在语法树中层次更深:
      * 1 + 2 * 3        -> (+ 1 ( * 2 3))
      * 1 * 2 + 3        -> (+ (* 1 2) 3)
-     * 1 * 2 + 3 * 4    -> (+ (* 1 * 2) (* 3 4))
      * <p>
      * 2.怎么处理同类操作符的结合性(左结合)
-     * 这里有一个while循环， 考虑: 1 * 2 + 3 * 4 + 5 * 6, 会在这里循环2次
-     * (1) expr = (1 * 2)
-     * (2) right = (3 * 4), -> expr = ( + (* 1  2) (* 3 4) )
-     * (3) 遇到 +, right = (* 5 6), (2)中的expr倍塞入左子树中，在语法树中层次更深，优先级更高，形成左结合性。
-     *
-     * @return 3.
+     * 优先级相等时也先归约，1 - 2 - 3 读到第二个 - 时先归约出(- 1 2)，最后是(- (- 1 2) 3)。
+     * and/or也是左结合的，短路求值的结果和右结合一样。
+     * <p>
+     * 几千个操作数的表达式也只占用一层Java栈，只有括号和一元运算符的操作数会嵌套调用。
      */
-    private Expr term() {
-        Expr expr = factor();
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
-            Token opertor = previous();
-            Expr right = factor();
-            //相同优先级情况下，当前表达式，不断塞入左子树,左倾斜二叉树
-            expr = new BinaryExpr(expr, opertor, right);
+    private Expr binary() {
+        List<Expr> operands = new ArrayList<>();
+        List<Token> operators = new ArrayList<>();
+        operands.add(unary());
+        int precedence;
+        while ((precedence = precedence(tokens.type(current))) > 0) {
+            while (!operators.isEmpty() && precedence(operators.get(operators.size() - 1).type) >= precedence) {
+                reduce(operands, operators);
+            }
+            advance();
+            operators.add(previous());
+            operands.add(unary());
         }
-        return expr;
+        while (!operators.isEmpty()) {
+            reduce(operands, operators);
+        }
+        return operands.get(0);
     }
 
-    private Expr factor() {
-        Expr expr = unary();
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            Token opertor = previous();
-            Expr right = unary();
-            expr = new BinaryExpr(expr, opertor, right);
+    private static void reduce(List<Expr> operands, List<Token> operators) {
+        Token operator = operators.remove(operators.size() - 1);
+        Expr right = operands.remove(operands.size() - 1);
+        Expr left = operands.remove(operands.size() - 1);
+        if (operator.type == TokenType.OR || operator.type == TokenType.AND) {
+            operands.add(new LogicalExpr(left, operator, right));
+        } else {
+            operands.add(new BinaryExpr(left, operator, right));
         }
-        return expr;
     }
 
+    /**
+     * 二元运算符的优先级，数字越大优先级越高，0表示不是二元运算符
+     */
+    private static int precedence(TokenType type) {
+        switch (type) {
+            case OR:
+                return 1;
+            case AND:
+                return 2;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return 3;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return 4;
+            case MINUS:
+            case PLUS:
+                return 5;
+            case SLASH:
+            case STAR:
+                return 6;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 连续的一元运算符(比如 !!!x, - - x)先收集起来，解析完操作数之后从内向外套上
+     */
     private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new UnaryExpr(operator, right);
+        List<Token> operators = null;
+        while (match(TokenType.BANG, TokenType.MINUS)) {
+            if (operators == null) {
+                operators = new ArrayList<>();
+            }
+            operators.add(previous());
+        }
+        Expr expr = call();
+        if (operators != null) {
+            for (int i = operators.size() - 1; i >= 0; i--) {
+                expr = new UnaryExpr(operators.get(i), expr);
+            }
         }
-        return call();
+        return expr;
     }
 
     private Expr call() {
@@ -344,11 +365,11 @@ public class Parser {
             return new LiteralExpr(null);
         }
         if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new LiteralExpr(previous().literal);
+            return new LiteralExpr(tokens.literal(current - 1));
         }
         if (match(TokenType.LEFT_PAREN)) {
             Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "expect ')' after expression.");
+            expect(TokenType.RIGHT_PAREN, "expect ')' after expression.");
             return new GroupExpr(expr);
         }
         if (match(TokenType.IDENTIFIER)) {
@@ -358,10 +379,18 @@ public class Parser {
     }
 
     private Token consume(TokenType tokenType, String msg) {
-        if (check(tokenType)) {
-            return advance();
+        expect(tokenType, msg);
+        return previous();
+    }
+
+    /**
+     * 和consume一样，但是不需要token本身，不创建Token对象
+     */
+    private void expect(TokenType tokenType, String msg) {
+        if (!check(tokenType)) {
+            throw error(peek(), msg);
         }
-        throw error(peek(), msg);
+        advance();
     }
 
     private boolean match(TokenType... types) {
@@ -378,39 +407,41 @@ public class Parser {
         if (isAtEnd()) {
             return false;
         }
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return tokens.type(current) == TokenType.EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
+    /**
+     * 每次调用都会创建新的Token对象，只在token需要放进语法树或者报错的时候调用
+     */
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) {
             current++;
         }
-        return previous();
     }
 
     private ParseError error(Token token, String message) {
-        throw new ParseError(message + "   around " + token.lexeme + " at line " + token.line + " column:" + token.column);
+        throw new ParseError(message + "   around " + token.getLexeme() + " at line " + token.line + " column:" + token.column);
     }
 
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMISOLON) {
+            if (tokens.type(current - 1) == TokenType.SEMISOLON) {
                 return;
             }
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FOR:
                 case FUN:
@@ -17,6 +17,6 @@ public class PrintStmt implements Stmt {
         return visitor.visitPrintStmt(this);
     }
 
-    final Expr expression;
+    Expr expression;
 
 }
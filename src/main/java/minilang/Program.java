@@ -0,0 +1,115 @@
+package minilang;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minilang.jit.Jit;
+
+/**
+ * 编译好的程序: 优化、resolve之后的语法树，以及全局变量的slot分配。
+ * 编译时先复制一份语法树，Optimizer和Resolver只修改这一份，这份语法树不会暴露给调用方。
+ * 同一个语句列表可以编译多次、也可以再交给Interpreter解释执行，已经编译好的程序不受影响。
+ * <p>
+ * 编译之后不再修改，可以在多个线程之间共享，每次执行用{@link #newContext()}创建自己的Interpreter，
+ * 全局变量、栈帧等执行状态都在Interpreter里，执行之间不需要加锁。
+ * <p>
+ * 语法树上运行时还会变化的只有BinaryExpr的类型特化和FunctionStmt的调用计数，
+ * 并发执行时最多是重复特化、少记几次调用，不影响结果。
+ * JIT编译的结果也在所有执行之间共享。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-19
+ */
+public final class Program {
+
+    private final List<Stmt> stmts;
+
+    private final int slotCount;
+
+    private final Globals layout;
+
+    private final Jit jit;
+
+    /**
+     * {@link ScriptExecutor}复用的空闲上下文，跟着Program一起回收。
+     * ConcurrentLinkedQueue.size()要遍历整个队列，数量单独计数
+     */
+    private final Queue<Interpreter> idleContexts = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private Program(List<Stmt> stmts, int slotCount, Globals layout, Jit jit) {
+        this.stmts = stmts;
+        this.slotCount = slotCount;
+        this.layout = layout;
+        this.jit = jit;
+    }
+
+    public static Program compile(List<Stmt> stmts) {
+        return compile(stmts, new Jit());
+    }
+
+    /**
+     * @param jit 为null时只解释执行
+     */
+    public static Program compile(List<Stmt> stmts, Jit jit) {
+        stmts = new Optimizer().optimize(new AstCopier().copy(stmts));
+        Globals layout = new Globals();
+        int slotCount = new Resolver(layout).resolve(stmts);
+        return new Program(Collections.unmodifiableList(stmts), slotCount, layout, jit);
+    }
+
+    /**
+     * 创建一个新的执行上下文，全局变量都是未定义的状态
+     */
+    public Interpreter newContext() {
+        Interpreter interpreter = new Interpreter(new Globals(layout));
+        interpreter.setJit(jit);
+        return interpreter;
+    }
+
+    /**
+     * 取一个空闲的上下文，没有时新建
+     */
+    Interpreter acquireContext() {
+        Interpreter context = idleContexts.poll();
+        if (context == null) {
+            return newContext();
+        }
+        idleCount.decrementAndGet();
+        return context;
+    }
+
+    /**
+     * context必须已经reset过，池里超过maxIdle个时直接丢弃
+     */
+    void releaseContext(Interpreter context, int maxIdle) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idleContexts.offer(context);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 在当前线程用一个新的上下文执行一次
+     */
+    public void run() {
+        newContext().execute(this);
+    }
+
+    List<Stmt> getStmts() {
+        return stmts;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    Globals getLayout() {
+        return layout;
+    }
+}
@@ -0,0 +1,89 @@
+package minilang;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * 从Reader按需读取的字符序列，下标是在整个输入里的位置。
+ * 只在内存里保留一个窗口，{@link #discardBefore(int)}之前的字符被丢掉，不能再访问。
+ * length()是目前已经读到的字符数，需要更多字符时调用{@link #fill(int)}。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-13
+ */
+class ReaderCharSequence implements CharSequence {
+
+    private final Reader reader;
+
+    private char[] buffer = new char[8192];
+
+    /**
+     * buffer[0]在整个输入里的位置
+     */
+    private int offset;
+
+    private int count;
+
+    private boolean eof;
+
+    ReaderCharSequence(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * 读到第index个字符为止，返回false表示输入没有这么长
+     */
+    boolean fill(int index) {
+        while (index >= offset + count) {
+            if (eof) {
+                return false;
+            }
+            if (count == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            try {
+                int n = reader.read(buffer, count, buffer.length - count);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    count += n;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
+    }
+
+    void discardBefore(int index) {
+        int n = index - offset;
+        if (n <= 0) {
+            return;
+        }
+        System.arraycopy(buffer, n, buffer, 0, count - n);
+        count -= n;
+        offset = index;
+    }
+
+    @Override
+    public int length() {
+        return offset + count;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return buffer[index - offset];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(buffer, start - offset, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count);
+    }
+}
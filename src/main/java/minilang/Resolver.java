@@ -0,0 +1,344 @@
+package minilang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 静态作用域分析，在Parser和Interpreter之间执行一遍。
+ * 给每个变量引用计算出(depth, slot)，解释执行的时候直接按下标读写{@link Environment}，不再按名字查找。
+ * <p>
+ * 1. 一个函数(或顶层脚本)对应一个栈帧，函数内block声明的变量也在这个帧里分配slot，进出block不需要创建新的Environment;
+ * 2. 例外是循环里声明了变量、又包含函数声明的block: 闭包可能捕获这些变量，每次进入block都要是新的变量，
+ *    这种block有自己的栈帧({@link BlockStmt#getSlotCount()}大于0)，和baseline每个block一个Environment的语义一致;
+ * 3. slot不复用: 同一个函数内每个声明都有自己的slot, 避免闭包捕获的变量被后面的声明覆盖;
+ * 4. 顶层(不在任何block内)的声明是全局变量，找不到的名字也按全局变量处理，由{@link Globals}在运行时报未定义。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-11
+ */
+public class Resolver implements ExprVisitor, StmtVisitor {
+
+    private static class ResolveError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ResolveError(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * 一个栈帧: 函数、顶层脚本或者有自己栈帧的block
+     */
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+
+        final boolean function;
+
+        /**
+         * 函数内嵌套的block，最后一个是最内层
+         */
+        final List<Map<Symbol, Integer>> blocks = new ArrayList<>();
+
+        int slotCount;
+
+        /**
+         * 当前所在的while层数，block有自己的栈帧时从0开始
+         */
+        int loopDepth;
+
+        FunctionScope(FunctionScope enclosing, boolean function) {
+            this.enclosing = enclosing;
+            this.function = function;
+        }
+    }
+
+    private final Globals globals;
+
+    private FunctionScope current = new FunctionScope(null, false);
+
+    /**
+     * 本次resolve里已经查过的全局变量，同名的Symbol是同一个对象，不用再按字符串查Globals
+     */
+    private final Map<Symbol, Integer> globalSlots = new HashMap<>();
+
+    public Resolver(Globals globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * @return 顶层脚本栈帧需要的slot数量
+     */
+    public int resolve(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            resolveStmt(stmt);
+        }
+        return current.slotCount;
+    }
+
+    @Override
+    public Object visitAssignExpr(AssignExpr expr) {
+        resolve(expr.getValue());
+        int[] location = lookup(expr.getSymbol());
+        expr.setDepth(location[0]);
+        expr.setSlot(location[1]);
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr) {
+        resolve(expr.getLeft());
+        resolve(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr) {
+        resolve(expr.getCallee());
+        for (Expr argument : expr.getArguments()) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitGroupingExpr(GroupExpr expr) {
+        resolve(expr.getExpr());
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr) {
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalExpr(LogicalExpr expr) {
+        resolve(expr.getLeft());
+        resolve(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr) {
+        resolve(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Object visitVariableExpr(VariableExpr expr) {
+        int[] location = lookup(expr.getSymbol());
+        expr.setDepth(location[0]);
+        expr.setSlot(location[1]);
+        return null;
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt) {
+        resolve(stmt.getExpr());
+        resolveStmt(stmt.getThenBranch());
+        if (stmt.getElseBranch() != null) {
+            resolveStmt(stmt.getElseBranch());
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt) {
+        if (current.loopDepth > 0 && declaresVariable(stmt.getStmts()) && containsFunction(stmt.getStmts())) {
+            FunctionScope block = new FunctionScope(current, false);
+            current = block;
+            current.blocks.add(new HashMap<>());
+            try {
+                for (Stmt s : stmt.getStmts()) {
+                    resolveStmt(s);
+                }
+            } finally {
+                current = block.enclosing;
+            }
+            stmt.setSlotCount(block.slotCount);
+            return null;
+        }
+        current.blocks.add(new HashMap<>());
+        for (Stmt s : stmt.getStmts()) {
+            resolveStmt(s);
+        }
+        current.blocks.remove(current.blocks.size() - 1);
+        stmt.setSlotCount(0);
+        return null;
+    }
+
+    @Override
+    public Object visitExprStmt(ExprStmt stmt) {
+        resolve(stmt.getExpr());
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionStmt(FunctionStmt stmt) {
+        //先声明函数名，函数体内可以递归调用自己
+        int[] location = declare(stmt.getName().getSymbol());
+
+        FunctionScope function = new FunctionScope(current, true);
+        current = function;
+        current.blocks.add(new HashMap<>());
+        try {
+            for (Token param : stmt.getParams()) {
+                declare(param.getSymbol());
+            }
+            for (Stmt s : stmt.getBody()) {
+                resolveStmt(s);
+            }
+        } finally {
+            current = function.enclosing;
+        }
+        stmt.setDepth(location[0]);
+        stmt.setSlot(location[1]);
+        stmt.setSlotCount(function.slotCount);
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStmt(PrintStmt stmt) {
+        resolve(stmt.getExpression());
+        return null;
+    }
+
+    @Override
+    public Object visitVarStmt(VarStmt stmt) {
+        //先处理初始化表达式再声明, var a = a; 右边的a指向外层的a
+        if (stmt.getExpr() != null) {
+            resolve(stmt.getExpr());
+        }
+        int[] location = declare(stmt.getSymbol());
+        stmt.setDepth(location[0]);
+        stmt.setSlot(location[1]);
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt) {
+        resolve(stmt.getCondition());
+        current.loopDepth++;
+        try {
+            resolveStmt(stmt.getBody());
+        } finally {
+            current.loopDepth--;
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt) {
+        if (!inFunction()) {
+            throw new ResolveError("can't return from top-level code " + stmt.getKeyword());
+        }
+        if (stmt.getValue() != null) {
+            resolve(stmt.getValue());
+        }
+        if (stmt.getValue() instanceof CallExpr) {
+            ((CallExpr) stmt.getValue()).setTailCall(true);
+        }
+        return null;
+    }
+
+    private void resolveStmt(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private boolean inFunction() {
+        for (FunctionScope scope = current; scope != null; scope = scope.enclosing) {
+            if (scope.function) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean declaresVariable(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            if (stmt instanceof VarStmt || stmt instanceof FunctionStmt) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 函数声明只能出现在语句里，不用看表达式
+     */
+    private static boolean containsFunction(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            if (containsFunction(stmt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsFunction(Stmt stmt) {
+        if (stmt instanceof FunctionStmt) {
+            return true;
+        }
+        if (stmt instanceof BlockStmt) {
+            return containsFunction(((BlockStmt) stmt).getStmts());
+        }
+        if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return containsFunction(ifStmt.getThenBranch())
+                    || ifStmt.getElseBranch() != null && containsFunction(ifStmt.getElseBranch());
+        }
+        if (stmt instanceof WhileStmt) {
+            return containsFunction(((WhileStmt) stmt).getBody());
+        }
+        return false;
+    }
+
+    /**
+     * @return {depth, slot}, depth为-1表示全局变量
+     */
+    private int[] declare(Symbol name) {
+        if (current.blocks.isEmpty()) {
+            return new int[] {-1, globalSlot(name)};
+        }
+        Map<Symbol, Integer> block = current.blocks.get(current.blocks.size() - 1);
+        if (block.containsKey(name)) {
+            throw new ResolveError("name already defined in this scope:" + name);
+        }
+        int slot = current.slotCount++;
+        block.put(name, slot);
+        return new int[] {0, slot};
+    }
+
+    private int[] lookup(Symbol name) {
+        int depth = 0;
+        for (FunctionScope function = current; function != null; function = function.enclosing) {
+            for (int i = function.blocks.size() - 1; i >= 0; i--) {
+                Integer slot = function.blocks.get(i).get(name);
+                if (slot != null) {
+                    return new int[] {depth, slot};
+                }
+            }
+            depth++;
+        }
+        return new int[] {-1, globalSlot(name)};
+    }
+
+    /**
+     * Globals跨多次编译共用，不同编译的Symbol不是同一个对象，所以Globals按名字分配slot
+     */
+    private int globalSlot(Symbol name) {
+        Integer slot = globalSlots.get(name);
+        if (slot == null) {
+            slot = globals.slotOf(name.getName());
+            globalSlots.put(name, slot);
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,131 @@
+package minilang;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并发执行编译好的{@link Program}。
+ * 1. JVM支持虚拟线程(Java 21+)时每次执行一个虚拟线程，否则用固定大小的平台线程池;
+ *    项目按Java 8编译，虚拟线程的API通过反射获取;
+ * 2. 同时执行的数量不超过maxConcurrency，满了之后submit阻塞，形成背压;
+ * 3. 每个Program的执行上下文(Interpreter)用完之后reset放回Program自己的池里复用，每次执行的全局变量互相隔离，
+ *    池跟着Program一起回收，执行器不持有Program;
+ * 4. 每次执行可以限制步数和时间({@link Budget})，从开始执行算起，排队的时间不算;
+ * 5. 每次执行可以指定自己的{@link Output}，比如用{@link StringOutput}收集输出，默认缓冲后写到System.out。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-20
+ */
+public class ScriptExecutor implements AutoCloseable {
+
+    private final ExecutorService executor;
+
+    private final Semaphore permits;
+
+    private final int maxConcurrency;
+
+    private final boolean virtualThreads;
+
+    public ScriptExecutor(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual
+                : Executors.newFixedThreadPool(maxConcurrency, new ScriptThreadFactory());
+    }
+
+    /**
+     * 等到有空闲的名额之后提交一次执行，返回的future在执行结束时完成，脚本报错时异常完成
+     */
+    public CompletableFuture<Void> submit(Program program) throws InterruptedException {
+        return submit(program, null, Budget.UNLIMITED, Budget.UNLIMITED);
+    }
+
+    /**
+     * 超过限制时future以{@link BudgetExceededException}异常完成
+     */
+    public CompletableFuture<Void> submit(Program program, long maxSteps, long timeoutMillis)
+            throws InterruptedException {
+        return submit(program, null, maxSteps, timeoutMillis);
+    }
+
+    /**
+     * @param output 为null时使用默认的输出
+     */
+    public CompletableFuture<Void> submit(Program program, Output output, long maxSteps, long timeoutMillis)
+            throws InterruptedException {
+        permits.acquire();
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> run(program, output, new Budget(maxSteps, timeoutMillis), result));
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return result;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * 等待已经提交的执行结束，等待时被中断则保留中断标记直接返回
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(Program program, Output output, Budget budget, CompletableFuture<Void> result) {
+        Interpreter context = program.acquireContext();
+        try {
+            context.setBudget(budget);
+            if (output != null) {
+                context.setOutput(output);
+            }
+            context.execute(program);
+            result.complete(null);
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        } finally {
+            //同一个Program最多同时有maxConcurrency个上下文在用，池里也只需要保留这么多
+            context.reset();
+            program.releaseContext(context, maxConcurrency);
+            permits.release();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static class ScriptThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "minilang-script-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package minilang;
+
+/**
+ * 把print的内容收集到内存里，嵌入使用时取脚本的输出
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-22
+ */
+public class StringOutput implements Output {
+
+    private final StringBuilder text = new StringBuilder();
+
+    @Override
+    public void println(String line) {
+        text.append(line).append('\n');
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    public String getText() {
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
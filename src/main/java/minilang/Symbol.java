@@ -0,0 +1,34 @@
+package minilang;
+
+/**
+ * 驻留过的标识符。同一次编译里同名的标识符是同一个Symbol对象(见{@link SymbolTable})，
+ * equals就是引用比较，hashCode在驻留时算好，做Map的key不需要再比较字符串。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-16
+ */
+public final class Symbol {
+
+    private final String name;
+
+    private final int hash;
+
+    Symbol(String name, int hash) {
+        this.name = name;
+        this.hash = hash;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,68 @@
+package minilang;
+
+/**
+ * 一次编译里标识符的驻留表，相同的名字只创建一个{@link Symbol}，之后可以直接比较引用。
+ * 开放寻址，直接用源码里的字符算哈希和比较，只有第一次遇到的名字才分配。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-15
+ */
+final class SymbolTable {
+
+    private Symbol[] symbols = new Symbol[64];
+
+    private int size;
+
+    Symbol intern(CharSequence source, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = symbols.length - 1;
+        int index = hash & mask;
+        Symbol symbol;
+        while ((symbol = symbols[index]) != null) {
+            if (symbol.hashCode() == hash && matches(symbol.getName(), source, start, length)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+        symbol = new Symbol(source.subSequence(start, start + length).toString(), hash);
+        symbols[index] = symbol;
+        if (++size * 2 > symbols.length) {
+            rehash();
+        }
+        return symbol;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static boolean matches(String name, CharSequence source, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        Symbol[] old = symbols;
+        symbols = new Symbol[old.length * 2];
+        int mask = symbols.length - 1;
+        for (Symbol symbol : old) {
+            if (symbol != null) {
+                int index = symbol.hashCode() & mask;
+                while (symbols[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                symbols[index] = symbol;
+            }
+        }
+    }
+}
@@ -1,29 +1,75 @@
 package minilang;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
 
 /**
+ * token只记录在源码里的位置(start, length)，不复制文本。
+ * 符号和关键字的lexeme直接用{@link TokenType}里共享的字符串，
+ * 标识符、字符串、数字第一次调用{@link #getLexeme()}时才从源码里截取。
+ * 截取之后不再引用源码，留在AST里的token不会让整段源码(比如文件映射)一直可达。
+ *
  * @author tianbing <tianbing@kuaishou.com>
  * Created on 2022-10-16
  */
 @Data
+@EqualsAndHashCode(exclude = {"source", "lexeme", "symbol"})
 public class Token {
 
     final TokenType type;
-    final String lexeme;
     final Object literal;
     final int line;
     final int column;
 
-    Token(TokenType type, String lexeme, Object literal, int line, int column) {
+    /**
+     * 只有还没截取文本的token持有，截取后置为null
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private CharSequence source;
+
+    private final int start;
+
+    private final int length;
+
+    @Setter(AccessLevel.NONE)
+    private String lexeme;
+
+    /**
+     * 标识符驻留后的Symbol，其他token为null
+     */
+    private final Symbol symbol;
+
+    /**
+     * @param lexeme 已经截取好的文本，为null时按需截取
+     */
+    Token(TokenType type, CharSequence source, int start, int length, String lexeme, Symbol symbol,
+            Object literal, int line, int column) {
         this.type = type;
-        this.lexeme = lexeme;
+        this.start = start;
+        this.length = length;
+        this.lexeme = lexeme != null ? lexeme : type.lexeme;
+        this.source = this.lexeme == null ? source : null;
+        this.symbol = symbol;
         this.literal = literal;
         this.line = line;
         this.column = column;
     }
 
+    public String getLexeme() {
+        String text = lexeme;
+        if (text == null) {
+            text = source.subSequence(start, start + length).toString();
+            lexeme = text;
+            source = null;
+        }
+        return text;
+    }
+
     public String toString() {
-        return String.format("(%s, %s, %d, %d)", type, lexeme, line, column);
+        return String.format("(%s, %s, %d, %d)", type, getLexeme(), line, column);
     }
 }
@@ -0,0 +1,236 @@
+package minilang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lexer的输出，按列存放的token流: 每个token只占几个数组元素，没有单独的Token对象。
+ * Parser直接按下标读取，只有需要放进语法树的token(标识符、运算符等)才通过{@link #token(int)}创建Token对象。
+ * 数字和字符串的字面量也在用到的时候才从源码里解析。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-06
+ */
+public class TokenBuffer implements TokenSource {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    /**
+     * 小于2^53的整数可以精确表示成double
+     */
+    private static final long MAX_EXACT = 1L << 53;
+
+    /**
+     * 10^22以内的10的幂都可以精确表示成double
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final CharSequence source;
+
+    private byte[] types = new byte[64];
+
+    private int[] starts = new int[64];
+
+    private int[] lengths = new int[64];
+
+    private int[] lines = new int[64];
+
+    private int[] columns = new int[64];
+
+    private int size;
+
+    /**
+     * 数组第0个元素对应的token序号，流式读取时前面的token会被丢掉
+     */
+    private int base;
+
+    /**
+     * 源码只保留一个窗口(比如{@link TokenStream})，创建Token时要立即截取文本
+     */
+    private final boolean streaming;
+
+    /**
+     * 标识符都驻留在这里，同名的标识符共用一个Symbol
+     */
+    private final SymbolTable symbols = new SymbolTable();
+
+    public TokenBuffer(CharSequence source) {
+        this(source, false);
+    }
+
+    TokenBuffer(CharSequence source, boolean streaming) {
+        this.source = source;
+        this.streaming = streaming;
+    }
+
+    /**
+     * 把已有的Token列表转成TokenBuffer。
+     * token截取文本后不再持有源码，这里用各自的lexeme拼出一段新的源码，行列号保持不变
+     */
+    public static TokenBuffer of(List<Token> tokens) {
+        StringBuilder source = new StringBuilder();
+        TokenBuffer buffer = new TokenBuffer(source);
+        for (Token token : tokens) {
+            String lexeme = token.getLexeme();
+            buffer.add(token.type, source.length(), lexeme.length(), token.line, token.column);
+            source.append(lexeme);
+        }
+        return buffer;
+    }
+
+    void add(TokenType type, int start, int length, int line, int column) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
+
+    /**
+     * 已经扫描出的token总数，包括被丢掉的
+     */
+    public int size() {
+        return base + size;
+    }
+
+    int base() {
+        return base;
+    }
+
+    void discardBefore(int index) {
+        int n = index - base;
+        if (n <= 0) {
+            return;
+        }
+        int remaining = size - n;
+        System.arraycopy(types, n, types, 0, remaining);
+        System.arraycopy(starts, n, starts, 0, remaining);
+        System.arraycopy(lengths, n, lengths, 0, remaining);
+        System.arraycopy(lines, n, lines, 0, remaining);
+        System.arraycopy(columns, n, columns, 0, remaining);
+        size = remaining;
+        base = index;
+    }
+
+    public CharSequence getSource() {
+        return source;
+    }
+
+    @Override
+    public TokenType type(int index) {
+        return TYPES[types[index - base]];
+    }
+
+    public int start(int index) {
+        return starts[index - base];
+    }
+
+    public int length(int index) {
+        return lengths[index - base];
+    }
+
+    public int line(int index) {
+        return lines[index - base];
+    }
+
+    public int column(int index) {
+        return columns[index - base];
+    }
+
+    public String text(int index) {
+        TokenType type = type(index);
+        if (type.lexeme != null) {
+            return type.lexeme;
+        }
+        int start = start(index);
+        if (type == TokenType.IDENTIFIER) {
+            return symbols.intern(source, start, length(index)).getName();
+        }
+        return source.subSequence(start, start + length(index)).toString();
+    }
+
+    /**
+     * 数字返回Double，字符串返回去掉引号的内容，其他token返回null
+     */
+    @Override
+    public Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER:
+                return number(start(index), length(index));
+            case STRING:
+                int start = start(index);
+                return source.subSequence(start + 1, start + length(index) - 1).toString();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 直接在源码上累加数字，不截取字符串。
+     * 整数和有效数字不超过2^53、小数位数不超过22位的小数，一次乘除就是正确舍入的结果，
+     * 其他情况交给Double.parseDouble
+     */
+    private Object number(int start, int length) {
+        long mantissa = 0;
+        //-1表示没有小数点
+        int fraction = -1;
+        for (int i = start; i < start + length; i++) {
+            char c = source.charAt(i);
+            if (c == '.') {
+                fraction = 0;
+                continue;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            if (fraction >= 0) {
+                fraction++;
+            }
+            if (mantissa >= MAX_EXACT || fraction >= POWERS_OF_TEN.length) {
+                return Double.parseDouble(source.subSequence(start, start + length).toString());
+            }
+        }
+        if (fraction <= 0) {
+            return Values.box(mantissa);
+        }
+        return mantissa / POWERS_OF_TEN[fraction];
+    }
+
+    @Override
+    public Token token(int index) {
+        TokenType type = type(index);
+        Symbol symbol = symbol(index);
+        String lexeme = symbol != null ? symbol.getName() : streaming ? text(index) : null;
+        return new Token(type, source, start(index), length(index), lexeme, symbol, literal(index),
+                line(index), column(index));
+    }
+
+    /**
+     * 标识符驻留后的Symbol，其他token返回null
+     */
+    public Symbol symbol(int index) {
+        if (type(index) != TokenType.IDENTIFIER) {
+            return null;
+        }
+        return symbols.intern(source, start(index), length(index));
+    }
+
+    public List<Token> toTokens() {
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = base; i < base + size; i++) {
+            tokens.add(token(i));
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,17 @@
+package minilang;
+
+/**
+ * Parser读取token的接口，下标是token在整个输入里的序号。
+ * Parser只会访问当前token和前一个token，流式的实现可以丢掉更早的token。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-13
+ */
+public interface TokenSource {
+
+    TokenType type(int index);
+
+    Object literal(int index);
+
+    Token token(int index);
+}
@@ -0,0 +1,62 @@
+package minilang;
+
+import java.io.Reader;
+
+/**
+ * 流式的TokenSource: Parser需要下一个token时才从Reader读取字符、扫描token，
+ * 内存里只保留最近的一小段源码和token，可以边读边解析边执行很大的脚本。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-08-13
+ */
+public class TokenStream implements TokenSource {
+
+    /**
+     * 攒够这么多已经用过的token再整体丢弃，避免每个token都移动一次数组
+     */
+    private static final int WINDOW = 256;
+
+    private final ReaderCharSequence source;
+
+    private final TokenBuffer tokens;
+
+    private final Lexer lexer;
+
+    public TokenStream(Reader reader) {
+        this.source = new ReaderCharSequence(reader);
+        this.tokens = new TokenBuffer(source, true);
+        this.lexer = new Lexer(source, tokens);
+    }
+
+    @Override
+    public TokenType type(int index) {
+        fill(index);
+        return tokens.type(index);
+    }
+
+    @Override
+    public Object literal(int index) {
+        fill(index);
+        return tokens.literal(index);
+    }
+
+    @Override
+    public Token token(int index) {
+        fill(index);
+        return tokens.token(index);
+    }
+
+    private void fill(int index) {
+        while (index >= tokens.size()) {
+            if (!lexer.scanNext()) {
+                break;
+            }
+        }
+        //Parser还可能访问index - 1，之前的token和对应的源码都可以丢掉
+        int keep = index - 1;
+        if (keep - tokens.base() >= WINDOW) {
+            tokens.discardBefore(keep);
+            source.discardBefore(tokens.start(keep));
+        }
+    }
+}
@@ -5,45 +5,54 @@ package minilang;
  * Created on 2022-10-16
  */
 public enum TokenType {
-    LEFT_PAREN,
-    RIGHT_PAREN,
-    LEFT_BRACE,
-    RIGHT_BRACE,
-    COMMA,
-    DOT,
-    MINUS,
-    PLUS,
-    SEMISOLON,
-    SLASH, // '/'
-    STAR,
+    LEFT_PAREN("("),
+    RIGHT_PAREN(")"),
+    LEFT_BRACE("{"),
+    RIGHT_BRACE("}"),
+    COMMA(","),
+    DOT("."),
+    MINUS("-"),
+    PLUS("+"),
+    SEMISOLON(";"),
+    SLASH("/"), // '/'
+    STAR("*"),
 
-    BANG,
-    BANG_EQUAL,
-    EQUAL,
-    EQUAL_EQUAL,
-    GREATER,
-    GREATER_EQUAL,
-    LESS,
-    LESS_EQUAL,
+    BANG("!"),
+    BANG_EQUAL("!="),
+    EQUAL("="),
+    EQUAL_EQUAL("=="),
+    GREATER(">"),
+    GREATER_EQUAL(">="),
+    LESS("<"),
+    LESS_EQUAL("<="),
 
-    IDENTIFIER,
-    STRING,
-    NUMBER,
+    IDENTIFIER(null),
+    STRING(null),
+    NUMBER(null),
 
     //key word
-    AND,
-    CLASS,
-    ELSE,
-    FALSE,
-    FUN,
-    FOR,
-    IF,
-    NIL,
-    OR,
-    PRINT,
-    RETURN,
-    TRUE,
-    VAR,
-    WHILE,
-    EOF
+    AND("and"),
+    CLASS("class"),
+    ELSE("else"),
+    FALSE("false"),
+    FUN("fun"),
+    FOR("for"),
+    IF("if"),
+    NIL("nil"),
+    OR("or"),
+    PRINT("print"),
+    RETURN("return"),
+    TRUE("true"),
+    VAR("var"),
+    WHILE("while"),
+    EOF("");
+
+    /**
+     * 符号和关键字的文本是固定的，所有token共用这一个字符串; 标识符、字符串、数字为null
+     */
+    final String lexeme;
+
+    TokenType(String lexeme) {
+        this.lexeme = lexeme;
+    }
 }
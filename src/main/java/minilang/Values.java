@@ -0,0 +1,65 @@
+package minilang;
+
+/**
+ * 解释器和虚拟机共用的值语义: 真假判断、相等比较、打印格式。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-18
+ */
+public final class Values {
+
+    /**
+     * 常用的小整数提前装箱，数字字面量直接复用
+     */
+    private static final Double[] SMALL_INTEGERS = new Double[1024];
+
+    static {
+        for (int i = 0; i < SMALL_INTEGERS.length; i++) {
+            SMALL_INTEGERS[i] = (double) i;
+        }
+    }
+
+    private Values() {
+    }
+
+    public static Double box(long value) {
+        if (value >= 0 && value < SMALL_INTEGERS.length) {
+            return SMALL_INTEGERS[(int) value];
+        }
+        return (double) value;
+    }
+
+    public static boolean isTruthy(Object object) {
+        if (object == null) {
+            return false;
+        }
+        if (object instanceof Boolean) {
+            return (boolean) object;
+        }
+        return true;
+    }
+
+    public static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) {
+            return true;
+        }
+        if (a == null) {
+            return false;
+        }
+        return a.equals(b);
+    }
+
+    public static String stringfy(Object object) {
+        if (object == null) {
+            return "nil";
+        }
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        return object.toString();
+    }
+}
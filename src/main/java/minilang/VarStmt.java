@@ -11,10 +11,23 @@ public class VarStmt implements Stmt {
 
     private Token name;
 
+    /**
+     * 驻留后的变量名，Resolver用它按引用查找作用域
+     */
+    private final Symbol symbol;
+
     private Expr expr;
 
+    /**
+     * 由Resolver填充: depth为-1表示全局变量, 0表示声明在当前函数帧的slot上
+     */
+    private int depth = -1;
+
+    private int slot;
+
     public VarStmt(Token name, Expr initExpr) {
         this.name = name;
+        this.symbol = name.getSymbol();
         this.expr = initExpr;
     }
 
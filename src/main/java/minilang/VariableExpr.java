@@ -11,8 +11,21 @@ public class VariableExpr implements Expr {
 
     Token name;
 
+    /**
+     * 驻留后的变量名，Resolver用它按引用查找作用域
+     */
+    private final Symbol symbol;
+
+    /**
+     * 由Resolver填充: depth是向外跨过的函数帧层数, -1表示全局变量; slot是帧内(或全局表)的下标
+     */
+    private int depth = -1;
+
+    private int slot;
+
     VariableExpr(Token name) {
         this.name = name;
+        this.symbol = name.getSymbol();
     }
 
 
@@ -0,0 +1,259 @@
+package minilang.jit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一个方法的字节码缓冲区。
+ * 生成的代码都是结构化的(if/while/and/or)，所以按顺序累加栈深度就能算出max_stack。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+class Code {
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+
+    /**
+     * 跳转目标，先使用后绑定
+     */
+    static class Label {
+        int position = -1;
+        final List<Integer> references = new ArrayList<>();
+    }
+
+    private final ClassFile classFile;
+
+    private byte[] code = new byte[256];
+
+    private int length;
+
+    private int stack;
+
+    private int maxStack;
+
+    private int maxLocals;
+
+    Code(ClassFile classFile, int maxLocals) {
+        this.classFile = classFile;
+        this.maxLocals = maxLocals;
+    }
+
+    int getMaxStack() {
+        return maxStack;
+    }
+
+    int getMaxLocals() {
+        return maxLocals;
+    }
+
+    void op(int opcode, int stackEffect) {
+        write(opcode);
+        adjustStack(stackEffect);
+    }
+
+    void aload(int local) {
+        localOp(ALOAD, local);
+        adjustStack(1);
+    }
+
+    void astore(int local) {
+        localOp(ASTORE, local);
+        adjustStack(-1);
+    }
+
+    void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            write(BIPUSH);
+            write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            write(SIPUSH);
+            writeShort(value);
+        } else {
+            ldc(classFile.integer(value));
+            return;
+        }
+        adjustStack(1);
+    }
+
+    void pushString(String value) {
+        ldc(classFile.string(value));
+    }
+
+    void pushDouble(double value) {
+        write(LDC2_W);
+        writeShort(classFile.doubleConstant(value));
+        adjustStack(2);
+    }
+
+    /**
+     * 栈顶是数组长度
+     */
+    void newArray(String elementType) {
+        write(ANEWARRAY);
+        writeShort(classFile.classRef(elementType));
+    }
+
+    void getStatic(String owner, String name, String descriptor) {
+        write(GETSTATIC);
+        writeShort(classFile.fieldRef(owner, name, descriptor));
+        adjustStack(descriptor.equals("D") || descriptor.equals("J") ? 2 : 1);
+    }
+
+    void putStatic(String owner, String name, String descriptor) {
+        write(PUTSTATIC);
+        writeShort(classFile.fieldRef(owner, name, descriptor));
+        adjustStack(descriptor.equals("D") || descriptor.equals("J") ? -2 : -1);
+    }
+
+    void invokeStatic(String owner, String name, String descriptor) {
+        invoke(INVOKESTATIC, classFile.methodRef(owner, name, descriptor), descriptor, false);
+    }
+
+    void invokeSpecial(String owner, String name, String descriptor) {
+        invoke(INVOKESPECIAL, classFile.methodRef(owner, name, descriptor), descriptor, true);
+    }
+
+    void invokeVirtual(String owner, String name, String descriptor) {
+        invoke(INVOKEVIRTUAL, classFile.methodRef(owner, name, descriptor), descriptor, true);
+    }
+
+    void jump(int opcode, Label label) {
+        write(opcode);
+        adjustStack(opcode == GOTO ? 0 : -1);
+        if (label.position >= 0) {
+            writeOffset(length - 1, label.position);
+        } else {
+            label.references.add(length - 1);
+            writeShort(0);
+        }
+    }
+
+    void bind(Label label) {
+        label.position = length;
+        for (int from : label.references) {
+            int saved = length;
+            length = from + 1;
+            writeOffset(from, label.position);
+            length = saved;
+        }
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(code, length);
+    }
+
+    private void invoke(int opcode, int ref, String descriptor, boolean hasReceiver) {
+        write(opcode);
+        writeShort(ref);
+        adjustStack(returnSize(descriptor) - argumentSize(descriptor) - (hasReceiver ? 1 : 0));
+    }
+
+    private void ldc(int index) {
+        if (index <= 0xff) {
+            write(LDC);
+            write(index);
+        } else {
+            write(LDC_W);
+            writeShort(index);
+        }
+        adjustStack(1);
+    }
+
+    private void localOp(int opcode, int local) {
+        if (local > 0xff) {
+            throw new JitException("too many locals");
+        }
+        write(opcode);
+        write(local);
+        if (local + 1 > maxLocals) {
+            maxLocals = local + 1;
+        }
+    }
+
+    private void writeOffset(int from, int to) {
+        int offset = to - from;
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new JitException("jump offset too large");
+        }
+        writeShort(offset);
+    }
+
+    private void adjustStack(int delta) {
+        stack += delta;
+        if (stack > maxStack) {
+            maxStack = stack;
+        }
+    }
+
+    private void write(int b) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[length++] = (byte) b;
+    }
+
+    private void writeShort(int value) {
+        write(value >> 8);
+        write(value);
+    }
+
+    private static int argumentSize(String descriptor) {
+        int size = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'D' || c == 'J') {
+                size += 2;
+                i++;
+            } else if (c == 'L') {
+                size++;
+                i = descriptor.indexOf(';', i) + 1;
+            } else if (c == '[') {
+                size++;
+                while (descriptor.charAt(i) == '[') {
+                    i++;
+                }
+                i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+            } else {
+                size++;
+                i++;
+            }
+        }
+        return size;
+    }
+
+    private static int returnSize(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (c == 'V') {
+            return 0;
+        }
+        return c == 'D' || c == 'J' ? 2 : 1;
+    }
+}
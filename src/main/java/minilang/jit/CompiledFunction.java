@@ -0,0 +1,20 @@
+package minilang.jit;
+
+import minilang.Environment;
+import minilang.Interpreter;
+
+/**
+ * JIT生成的类都实现这个接口，一个FunctionStmt对应一个实现类
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+public interface CompiledFunction {
+
+    /**
+     * @param interpreter 当前的解释器，用来访问全局变量
+     * @param closure     函数定义时所在的栈帧，访问外层函数的变量时使用
+     * @param args        实参，个数已经由调用方检查过
+     */
+    Object call(Interpreter interpreter, Environment closure, Object[] args);
+}
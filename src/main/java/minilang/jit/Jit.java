@@ -0,0 +1,73 @@
+package minilang.jit;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import minilang.FunctionStmt;
+
+/**
+ * JIT编译层的入口。
+ * 调用次数按函数声明(FunctionStmt)统计，所有闭包、所有执行上下文累加到同一个计数上，
+ * 达到{@link #getThreshold()}之后Interpreter调用{@link #compile(FunctionStmt)};
+ * 声明已经是热点时，之后新建的闭包创建时就取编译结果，不再解释执行到阈值。
+ * 返回null表示这个函数不能编译，继续解释执行。
+ * 同一个FunctionStmt只编译一次，闭包的多个实例共用同一个生成的类。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+public class Jit {
+
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final Object NOT_COMPILABLE = new Object();
+
+    private final int threshold;
+
+    private final JitClassLoader classLoader = new JitClassLoader(Jit.class.getClassLoader());
+
+    private final Map<FunctionStmt, Object> compiled = new IdentityHashMap<>();
+
+    private int classCount;
+
+    public Jit() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public Jit(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public synchronized CompiledFunction compile(FunctionStmt function) {
+        Object result = compiled.get(function);
+        if (result == null) {
+            result = doCompile(function);
+            compiled.put(function, result);
+        }
+        return result == NOT_COMPILABLE ? null : (CompiledFunction) result;
+    }
+
+    private Object doCompile(FunctionStmt function) {
+        String className = "minilang/jit/gen/" + javaName(function.getName().getLexeme()) + "$" + (classCount++);
+        try {
+            byte[] bytes = new JitCompiler(className, function).compile(function);
+            Class<?> clazz = classLoader.define(className.replace('/', '.'), bytes);
+            return clazz.getDeclaredConstructor().newInstance();
+        } catch (JitException | LinkageError | ReflectiveOperationException e) {
+            return NOT_COMPILABLE;
+        }
+    }
+
+    private static String javaName(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            builder.append(Character.isLetterOrDigit(c) || c == '_' ? c : '_');
+        }
+        return builder.toString();
+    }
+}
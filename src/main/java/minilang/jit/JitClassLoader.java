@@ -0,0 +1,19 @@
+package minilang.jit;
+
+/**
+ * 专门用来加载JIT生成的类。
+ * 生成的类只引用minilang里的public类型，所以父加载器用加载minilang的ClassLoader即可。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+class JitClassLoader extends ClassLoader {
+
+    JitClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
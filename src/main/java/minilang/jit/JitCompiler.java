@@ -0,0 +1,477 @@
+package minilang.jit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import minilang.AssignExpr;
+import minilang.BinaryExpr;
+import minilang.BlockStmt;
+import minilang.CallExpr;
+import minilang.Expr;
+import minilang.ExprStmt;
+import minilang.ExprVisitor;
+import minilang.FunctionStmt;
+import minilang.GroupExpr;
+import minilang.IfStmt;
+import minilang.LiteralExpr;
+import minilang.LogicalExpr;
+import minilang.PrintStmt;
+import minilang.ReturnStmt;
+import minilang.Stmt;
+import minilang.StmtVisitor;
+import minilang.Token;
+import minilang.TokenType;
+import minilang.UnaryExpr;
+import minilang.VarStmt;
+import minilang.VariableExpr;
+import minilang.WhileStmt;
+
+/**
+ * 把一个FunctionStmt编译成一个实现{@link CompiledFunction}的类。
+ * <p>
+ * 函数自己栈帧里的变量(depth为0)直接放在JVM的局部变量表里，C2可以做寄存器分配;
+ * 外层函数的变量通过closure访问，全局变量通过interpreter访问。
+ * 遇到不支持的语法抛{@link JitException}，由{@link Jit}回退到解释执行。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+class JitCompiler implements ExprVisitor, StmtVisitor {
+
+    private static final String RUNTIME = "minilang/jit/JitRuntime";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INTERPRETER = "Lminilang/Interpreter;";
+    private static final String ENVIRONMENT = "Lminilang/Environment;";
+    private static final String BINARY = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String CHECKED_BINARY = "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;";
+    private static final String COMPARE = "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;)Z";
+
+    /**
+     * call方法的局部变量: 0 this, 1 interpreter, 2 closure, 3 args, 从4开始是栈帧的slot
+     */
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int CLOSURE_LOCAL = 2;
+    private static final int ARGS_LOCAL = 3;
+    private static final int FIRST_SLOT = 4;
+
+    private final ClassFile classFile;
+
+    private final Code code;
+
+    private final List<Double> numbers = new ArrayList<>();
+
+    private final int arity;
+
+    /**
+     * 参数初始化之后的位置，自身的尾调用跳回这里
+     */
+    private final Code.Label start = new Code.Label();
+
+    /**
+     * 尾调用时暂存callee的局部变量
+     */
+    private final int calleeLocal;
+
+    JitCompiler(String className, FunctionStmt function) {
+        this.classFile = new ClassFile(className, OBJECT);
+        this.code = new Code(classFile, FIRST_SLOT + function.getSlotCount());
+        this.arity = function.getParams().size();
+        this.calleeLocal = FIRST_SLOT + function.getSlotCount();
+    }
+
+    byte[] compile(FunctionStmt function) {
+        classFile.addInterface("minilang/jit/CompiledFunction");
+
+        //参数从args拷贝到局部变量，其余的slot初始化为nil
+        int params = function.getParams().size();
+        for (int i = 0; i < function.getSlotCount(); i++) {
+            if (i < params) {
+                code.aload(ARGS_LOCAL);
+                code.pushInt(i);
+                code.op(Code.AALOAD, -1);
+            } else {
+                code.op(Code.ACONST_NULL, 1);
+            }
+            code.astore(FIRST_SLOT + i);
+        }
+        code.bind(start);
+        for (Stmt stmt : function.getBody()) {
+            compileStmt(stmt);
+        }
+        code.op(Code.ACONST_NULL, 1);
+        code.op(Code.ARETURN, -1);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "call",
+                "(" + INTERPRETER + ENVIRONMENT + "[Ljava/lang/Object;)Ljava/lang/Object;", code);
+
+        Code init = new Code(classFile, 1);
+        init.aload(0);
+        init.invokeSpecial(OBJECT, "<init>", "()V");
+        init.op(Code.RETURN, 0);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", init);
+
+        //数字常量提前装箱，放在静态字段里
+        if (!numbers.isEmpty()) {
+            Code clinit = new Code(classFile, 0);
+            for (int i = 0; i < numbers.size(); i++) {
+                classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC | ClassFile.ACC_FINAL,
+                        "K" + i, "Ljava/lang/Object;");
+                clinit.pushDouble(numbers.get(i));
+                clinit.invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+                clinit.putStatic(classFile.getName(), "K" + i, "Ljava/lang/Object;");
+            }
+            clinit.op(Code.RETURN, 0);
+            classFile.addMethod(ClassFile.ACC_STATIC, "<clinit>", "()V", clinit);
+        }
+        return classFile.toByteArray();
+    }
+
+    @Override
+    public Object visitAssignExpr(AssignExpr expr) {
+        compileAssign(expr, true);
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr) {
+        compile(expr.getLeft());
+        compile(expr.getRight());
+        switch (expr.getOperator().getType()) {
+            case MINUS:
+                checkedRuntime("subtract", expr.getOperator());
+                break;
+            case SLASH:
+                checkedRuntime("divide", expr.getOperator());
+                break;
+            case STAR:
+                checkedRuntime("multiply", expr.getOperator());
+                break;
+            case PLUS:
+                checkedRuntime("add", expr.getOperator());
+                break;
+            case GREATER:
+                checkedRuntime("greater", expr.getOperator());
+                break;
+            case GREATER_EQUAL:
+                checkedRuntime("greaterEqual", expr.getOperator());
+                break;
+            case LESS:
+                checkedRuntime("less", expr.getOperator());
+                break;
+            case LESS_EQUAL:
+                checkedRuntime("lessEqual", expr.getOperator());
+                break;
+            case BANG_EQUAL:
+                runtime("notEqual", BINARY);
+                break;
+            case EQUAL_EQUAL:
+                runtime("equal", BINARY);
+                break;
+            default:
+                throw new JitException("unknown binary operator " + expr.getOperator());
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr) {
+        compile(expr.getCallee());
+        compileInvoke(expr, "call");
+        return null;
+    }
+
+    /**
+     * 栈顶是callee。参数装进数组，由interpreter分派，被调用的函数如果也编译过了会直接调用生成的代码
+     *
+     * @param method JitRuntime.call, 或者尾调用时用JitRuntime.tailCall
+     */
+    private void compileInvoke(CallExpr expr, String method) {
+        code.pushInt(expr.getArguments().size());
+        code.newArray(OBJECT);
+        for (int i = 0; i < expr.getArguments().size(); i++) {
+            code.op(Code.DUP, 1);
+            code.pushInt(i);
+            compile(expr.getArguments().get(i));
+            code.op(Code.AASTORE, -3);
+        }
+        code.aload(INTERPRETER_LOCAL);
+        code.pushString(expr.getParen().toString());
+        runtime(method, "(Ljava/lang/Object;[Ljava/lang/Object;" + INTERPRETER + "Ljava/lang/String;)Ljava/lang/Object;");
+    }
+
+    @Override
+    public Object visitGroupingExpr(GroupExpr expr) {
+        compile(expr.getExpr());
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr) {
+        Object value = expr.getValue();
+        if (value == null) {
+            code.op(Code.ACONST_NULL, 1);
+        } else if (value instanceof Boolean) {
+            code.getStatic("java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else if (value instanceof String) {
+            code.pushString((String) value);
+        } else if (value instanceof Double) {
+            int index = numbers.indexOf(value);
+            if (index < 0) {
+                index = numbers.size();
+                numbers.add((Double) value);
+            }
+            code.getStatic(classFile.getName(), "K" + index, "Ljava/lang/Object;");
+        } else {
+            throw new JitException("unsupported literal " + value);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalExpr(LogicalExpr expr) {
+        Code.Label end = new Code.Label();
+        compile(expr.getLeft());
+        code.op(Code.DUP, 1);
+        runtime("isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(expr.getOperator().getType() == TokenType.OR ? Code.IFNE : Code.IFEQ, end);
+        code.op(Code.POP, -1);
+        compile(expr.getRight());
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr) {
+        compile(expr.getRight());
+        if (expr.getOperator().getType() == TokenType.MINUS) {
+            code.pushString(expr.getOperator().toString());
+            runtime("negate", "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;");
+        } else {
+            runtime("not", "(Ljava/lang/Object;)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVariableExpr(VariableExpr expr) {
+        int depth = expr.getDepth();
+        if (depth == 0) {
+            code.aload(FIRST_SLOT + expr.getSlot());
+        } else if (depth < 0) {
+            code.aload(INTERPRETER_LOCAL);
+            code.pushInt(expr.getSlot());
+            code.pushString(expr.getName().toString());
+            runtime("getGlobal", "(" + INTERPRETER + "ILjava/lang/String;)Ljava/lang/Object;");
+        } else {
+            code.aload(CLOSURE_LOCAL);
+            code.pushInt(depth - 1);
+            code.pushInt(expr.getSlot());
+            runtime("getAt", "(" + ENVIRONMENT + "II)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt) {
+        Code.Label elseLabel = new Code.Label();
+        compileCondition(stmt.getExpr(), elseLabel);
+        compileStmt(stmt.getThenBranch());
+        if (stmt.getElseBranch() == null) {
+            code.bind(elseLabel);
+        } else {
+            Code.Label end = new Code.Label();
+            code.jump(Code.GOTO, end);
+            code.bind(elseLabel);
+            compileStmt(stmt.getElseBranch());
+            code.bind(end);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt) {
+        for (Stmt s : stmt.getStmts()) {
+            compileStmt(s);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitExprStmt(ExprStmt stmt) {
+        if (stmt.getExpr() instanceof AssignExpr) {
+            compileAssign((AssignExpr) stmt.getExpr(), false);
+        } else {
+            compile(stmt.getExpr());
+            code.op(Code.POP, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionStmt(FunctionStmt stmt) {
+        throw new JitException("nested function is not supported by jit " + stmt.getName());
+    }
+
+    @Override
+    public Object visitPrintStmt(PrintStmt stmt) {
+        compile(stmt.getExpression());
+        code.aload(INTERPRETER_LOCAL);
+        runtime("print", "(Ljava/lang/Object;" + INTERPRETER + ")V");
+        return null;
+    }
+
+    @Override
+    public Object visitVarStmt(VarStmt stmt) {
+        if (stmt.getExpr() != null) {
+            compile(stmt.getExpr());
+        } else {
+            code.op(Code.ACONST_NULL, 1);
+        }
+        code.astore(FIRST_SLOT + stmt.getSlot());
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt) {
+        Code.Label start = new Code.Label();
+        Code.Label end = new Code.Label();
+        code.bind(start);
+        compileCondition(stmt.getCondition(), end);
+        compileStmt(stmt.getBody());
+        tick();
+        code.jump(Code.GOTO, start);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt) {
+        if (stmt.getValue() instanceof CallExpr && ((CallExpr) stmt.getValue()).isTailCall()) {
+            compileTailCall((CallExpr) stmt.getValue());
+            return null;
+        }
+        if (stmt.getValue() != null) {
+            compile(stmt.getValue());
+        } else {
+            code.op(Code.ACONST_NULL, 1);
+        }
+        code.op(Code.ARETURN, -1);
+        return null;
+    }
+
+    /**
+     * callee是正在执行的函数自己(同一个生成的类、同一个闭包)时，参数写回局部变量后跳到函数开头，变成循环;
+     * 否则交给interpreter的尾调用循环，调用其他函数也不会让Java栈变深。
+     * 参数个数和当前函数不一样时callee不可能是自己(是自己就是参数个数错误，由tailCall报错)，只生成后一种
+     */
+    private void compileTailCall(CallExpr call) {
+        compile(call.getCallee());
+        code.astore(calleeLocal);
+        if (call.getArguments().size() == arity) {
+            Code.Label notSelf = new Code.Label();
+            code.aload(calleeLocal);
+            code.aload(0);
+            code.aload(CLOSURE_LOCAL);
+            runtime("isSelfCall", "(Ljava/lang/Object;Lminilang/jit/CompiledFunction;" + ENVIRONMENT + ")Z");
+            code.jump(Code.IFEQ, notSelf);
+            //所有参数都求值完之后再写回，参数表达式里用到的是旧值
+            for (Expr argument : call.getArguments()) {
+                compile(argument);
+            }
+            for (int i = call.getArguments().size() - 1; i >= 0; i--) {
+                code.astore(FIRST_SLOT + i);
+            }
+            tick();
+            code.jump(Code.GOTO, start);
+            code.bind(notSelf);
+        }
+        code.aload(calleeLocal);
+        compileInvoke(call, "tailCall");
+        code.op(Code.ARETURN, -1);
+    }
+
+    private void compileStmt(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileAssign(AssignExpr expr, boolean keepValue) {
+        compile(expr.getValue());
+        if (keepValue) {
+            code.op(Code.DUP, 1);
+        }
+        int depth = expr.getDepth();
+        if (depth == 0) {
+            code.astore(FIRST_SLOT + expr.getSlot());
+        } else if (depth < 0) {
+            code.aload(INTERPRETER_LOCAL);
+            code.pushInt(expr.getSlot());
+            code.pushString(expr.getToken().toString());
+            runtime("setGlobal", "(Ljava/lang/Object;" + INTERPRETER + "ILjava/lang/String;)V");
+        } else {
+            code.aload(CLOSURE_LOCAL);
+            code.pushInt(depth - 1);
+            code.pushInt(expr.getSlot());
+            runtime("assignAt", "(Ljava/lang/Object;" + ENVIRONMENT + "II)V");
+        }
+    }
+
+    /**
+     * 条件为假时跳到falseLabel。比较运算直接得到boolean，不需要装箱成Boolean再判断
+     */
+    private void compileCondition(Expr condition, Code.Label falseLabel) {
+        if (condition instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) condition;
+            String method = null;
+            switch (binary.getOperator().getType()) {
+                case GREATER:
+                    method = "isGreater";
+                    break;
+                case GREATER_EQUAL:
+                    method = "isGreaterEqual";
+                    break;
+                case LESS:
+                    method = "isLess";
+                    break;
+                case LESS_EQUAL:
+                    method = "isLessEqual";
+                    break;
+                default:
+                    break;
+            }
+            if (method != null) {
+                compile(binary.getLeft());
+                compile(binary.getRight());
+                code.pushString(binary.getOperator().toString());
+                runtime(method, COMPARE);
+                code.jump(Code.IFEQ, falseLabel);
+                return;
+            }
+        }
+        compile(condition);
+        runtime("isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(Code.IFEQ, falseLabel);
+    }
+
+    /**
+     * 向后跳转之前扣减执行预算，见{@link minilang.Budget}
+     */
+    private void tick() {
+        code.aload(INTERPRETER_LOCAL);
+        runtime("tick", "(" + INTERPRETER + ")V");
+    }
+
+    /**
+     * 类型不对时报错的二元运算，报错信息里带上运算符的Token
+     */
+    private void checkedRuntime(String method, Token operator) {
+        code.pushString(operator.toString());
+        runtime(method, CHECKED_BINARY);
+    }
+
+    private void runtime(String method, String descriptor) {
+        code.invokeStatic(RUNTIME, method, descriptor);
+    }
+}
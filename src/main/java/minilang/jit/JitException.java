@@ -0,0 +1,16 @@
+package minilang.jit;
+
+/**
+ * 函数体里有JIT不支持的语法时抛出，调用方捕获后回退到解释执行
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+public class JitException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    JitException(String msg) {
+        super(msg);
+    }
+}
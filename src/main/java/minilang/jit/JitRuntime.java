@@ -0,0 +1,144 @@
+package minilang.jit;
+
+import minilang.Environment;
+import minilang.Interpreter;
+import minilang.MiniFunction;
+import minilang.Values;
+
+/**
+ * JIT生成的代码调用的辅助方法。
+ * 方法都很短，HotSpot会内联到生成的代码里。
+ * 可能报错的方法最后一个参数是对应Token的字符串形式(编译时的常量)，报错信息和解释执行时一样，带着运算符和行号。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+public final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    public static Object getGlobal(Interpreter interpreter, int slot, String name) {
+        return interpreter.getGlobals().get(slot, name);
+    }
+
+    public static void setGlobal(Object value, Interpreter interpreter, int slot, String name) {
+        interpreter.getGlobals().assign(slot, name, value);
+    }
+
+    public static Object getAt(Environment closure, int depth, int slot) {
+        return closure.getAt(depth, slot);
+    }
+
+    public static void assignAt(Object value, Environment closure, int depth, int slot) {
+        closure.assignAt(depth, slot, value);
+    }
+
+    public static Object call(Object callee, Object[] args, Interpreter interpreter, String paren) {
+        return interpreter.call(callee, args, paren);
+    }
+
+    public static Object tailCall(Object callee, Object[] args, Interpreter interpreter, String paren) {
+        return interpreter.tailCall(callee, args, paren);
+    }
+
+    /**
+     * 生成的代码在循环回边和自身尾调用跳回开头之前调用
+     */
+    public static void tick(Interpreter interpreter) {
+        interpreter.getBudget().tick();
+    }
+
+    public static boolean isSelfCall(Object callee, CompiledFunction self, Environment closure) {
+        if (!(callee instanceof MiniFunction)) {
+            return false;
+        }
+        MiniFunction function = (MiniFunction) callee;
+        return function.getCompiled() == self && function.getClosure() == closure;
+    }
+
+    public static Object add(Object left, Object right, String operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        throw new RuntimeException(operator + " operands must be two numbers or two strings");
+    }
+
+    public static Object subtract(Object left, Object right, String operator) {
+        return number(left, operator) - number(right, operator);
+    }
+
+    public static Object multiply(Object left, Object right, String operator) {
+        return number(left, operator) * number(right, operator);
+    }
+
+    public static Object divide(Object left, Object right, String operator) {
+        return number(left, operator) / number(right, operator);
+    }
+
+    public static Object negate(Object right, String operator) {
+        return -number(right, operator);
+    }
+
+    public static Object not(Object right) {
+        return !Values.isTruthy(right);
+    }
+
+    public static Object equal(Object left, Object right) {
+        return Values.isEqual(left, right);
+    }
+
+    public static Object notEqual(Object left, Object right) {
+        return !Values.isEqual(left, right);
+    }
+
+    public static boolean isGreater(Object left, Object right, String operator) {
+        return number(left, operator) > number(right, operator);
+    }
+
+    public static boolean isGreaterEqual(Object left, Object right, String operator) {
+        return number(left, operator) >= number(right, operator);
+    }
+
+    public static boolean isLess(Object left, Object right, String operator) {
+        return number(left, operator) < number(right, operator);
+    }
+
+    public static boolean isLessEqual(Object left, Object right, String operator) {
+        return number(left, operator) <= number(right, operator);
+    }
+
+    public static Object greater(Object left, Object right, String operator) {
+        return isGreater(left, right, operator);
+    }
+
+    public static Object greaterEqual(Object left, Object right, String operator) {
+        return isGreaterEqual(left, right, operator);
+    }
+
+    public static Object less(Object left, Object right, String operator) {
+        return isLess(left, right, operator);
+    }
+
+    public static Object lessEqual(Object left, Object right, String operator) {
+        return isLessEqual(left, right, operator);
+    }
+
+    public static boolean isTruthy(Object value) {
+        return Values.isTruthy(value);
+    }
+
+    public static void print(Object value, Interpreter interpreter) {
+        interpreter.getOutput().println(Values.stringfy(value));
+    }
+
+    private static double number(Object value, String operator) {
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new RuntimeException(operator + " Operator must be a number!");
+    }
+}
@@ -0,0 +1,106 @@
+package minilang.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一段编译好的字节码: 指令、常量池、行号表。
+ * 行号表只在行号变化的地方记一条(指令偏移, 行号)，只有报错的时候才查。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-18
+ */
+public class Chunk {
+
+    byte[] code = new byte[64];
+
+    int count;
+
+    Object[] constants;
+
+    private final List<Object> constantList = new ArrayList<>();
+
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    private int[] lineOffsets = new int[8];
+
+    private int[] lines = new int[8];
+
+    private int lineCount;
+
+    /**
+     * 操作数栈最大深度，由Compiler计算
+     */
+    int maxStack;
+
+    /**
+     * 栈帧里局部变量的数量，由Resolver计算
+     */
+    int slotCount;
+
+    /**
+     * 函数的Chunk才有，顶层脚本的name是null
+     */
+    String name;
+
+    int arity;
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        if (lineCount == 0 || lines[lineCount - 1] != line) {
+            if (lineCount == lines.length) {
+                lines = Arrays.copyOf(lines, lineCount * 2);
+                lineOffsets = Arrays.copyOf(lineOffsets, lineCount * 2);
+            }
+            lineOffsets[lineCount] = count;
+            lines[lineCount] = line;
+            lineCount++;
+        }
+        code[count++] = b;
+    }
+
+    int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constantList.size();
+            constantList.add(value);
+            constantIndex.put(value, index);
+        }
+        return index;
+    }
+
+    /**
+     * 编译结束，代码和常量池收缩成最终大小
+     */
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        constants = constantList.toArray();
+    }
+
+    public int getLine(int offset) {
+        int low = 0;
+        int high = lineCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineOffsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return lineCount == 0 ? 0 : lines[low];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,26 @@
+package minilang.vm;
+
+import minilang.Environment;
+
+/**
+ * VM里的函数值: 编译好的函数Chunk加上定义时所在的栈帧
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-07-23
+ */
+public final class Closure {
+
+    final Chunk chunk;
+
+    final Environment enclosing;
+
+    Closure(Chunk chunk, Environment enclosing) {
+        this.chunk = chunk;
+        this.enclosing = enclosing;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + chunk.name + ">";
+    }
+}
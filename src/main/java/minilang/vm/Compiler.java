@@ -0,0 +1,450 @@
+package minilang.vm;
+
+import java.util.List;
+
+import minilang.AssignExpr;
+import minilang.BinaryExpr;
+import minilang.BlockStmt;
+import minilang.CallExpr;
+import minilang.Expr;
+import minilang.ExprStmt;
+import minilang.ExprVisitor;
+import minilang.FunctionStmt;
+import minilang.GroupExpr;
+import minilang.IfStmt;
+import minilang.LiteralExpr;
+import minilang.LogicalExpr;
+import minilang.PrintStmt;
+import minilang.ReturnStmt;
+import minilang.Stmt;
+import minilang.StmtVisitor;
+import minilang.TokenType;
+import minilang.UnaryExpr;
+import minilang.VarStmt;
+import minilang.VariableExpr;
+import minilang.WhileStmt;
+
+/**
+ * 把Resolver处理过的语法树编译成{@link Chunk}。
+ * 变量的(depth, slot)直接沿用Resolver的结果: 局部变量对应栈帧的slot，全局变量对应{@link minilang.Globals}的slot。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-18
+ */
+public class Compiler implements ExprVisitor, StmtVisitor {
+
+    private static class CompileError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        CompileError(String msg) {
+            super(msg);
+        }
+    }
+
+    private final Chunk chunk = new Chunk();
+
+    private int line;
+
+    private int stackDepth;
+
+    public Chunk compile(List<Stmt> stmts, int slotCount) {
+        for (Stmt stmt : stmts) {
+            stmt.accept(this);
+        }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+        chunk.slotCount = slotCount;
+        chunk.seal();
+        return chunk;
+    }
+
+    /**
+     * 每个函数编译成单独的Chunk，放在外层Chunk的常量池里
+     */
+    private static Chunk compileFunction(FunctionStmt stmt) {
+        Compiler compiler = new Compiler();
+        compiler.line = stmt.getName().getLine();
+        compiler.chunk.name = stmt.getName().getLexeme();
+        compiler.chunk.arity = stmt.getParams().size();
+        return compiler.compile(stmt.getBody(), stmt.getSlotCount());
+    }
+
+    @Override
+    public Object visitAssignExpr(AssignExpr expr) {
+        compile(expr.getValue());
+        line = expr.getToken().getLine();
+        emitVariable(OpCode.SET_GLOBAL, OpCode.SET_LOCAL, OpCode.SET_OUTER, expr.getDepth(), expr.getSlot());
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr) {
+        compile(expr.getLeft());
+        compile(expr.getRight());
+        line = expr.getOperator().getLine();
+        switch (expr.getOperator().getType()) {
+            case MINUS:
+                emit(OpCode.SUBTRACT);
+                break;
+            case SLASH:
+                emit(OpCode.DIVIDE);
+                break;
+            case STAR:
+                emit(OpCode.MULTIPLY);
+                break;
+            case PLUS:
+                emit(OpCode.ADD);
+                break;
+            case GREATER:
+                emit(OpCode.GREATER);
+                break;
+            case GREATER_EQUAL:
+                emit(OpCode.GREATER_EQUAL);
+                break;
+            case LESS:
+                emit(OpCode.LESS);
+                break;
+            case LESS_EQUAL:
+                emit(OpCode.LESS_EQUAL);
+                break;
+            case BANG_EQUAL:
+                emit(OpCode.NOT_EQUAL);
+                break;
+            case EQUAL_EQUAL:
+                emit(OpCode.EQUAL);
+                break;
+            default:
+                throw new CompileError("unknown binary operator " + expr.getOperator());
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr) {
+        compile(expr.getCallee());
+        for (Expr argument : expr.getArguments()) {
+            compile(argument);
+        }
+        line = expr.getParen().getLine();
+        emit(OpCode.CALL, expr.getArguments().size());
+        //callee和参数出栈，返回值入栈
+        adjustStack(-expr.getArguments().size());
+        return null;
+    }
+
+    @Override
+    public Object visitGroupingExpr(GroupExpr expr) {
+        compile(expr.getExpr());
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr) {
+        Object value = expr.getValue();
+        if (value == null) {
+            emit(OpCode.NIL);
+        } else if (value instanceof Boolean) {
+            emit((Boolean) value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, chunk.addConstant(value));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalExpr(LogicalExpr expr) {
+        compile(expr.getLeft());
+        line = expr.getOperator().getLine();
+        if (expr.getOperator().getType() == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.getRight());
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compile(expr.getRight());
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr) {
+        compile(expr.getRight());
+        line = expr.getOperator().getLine();
+        if (expr.getOperator().getType() == TokenType.MINUS) {
+            emit(OpCode.NEGATE);
+        } else {
+            emit(OpCode.NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVariableExpr(VariableExpr expr) {
+        line = expr.getName().getLine();
+        emitVariable(OpCode.GET_GLOBAL, OpCode.GET_LOCAL, OpCode.GET_OUTER, expr.getDepth(), expr.getSlot());
+        return null;
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt) {
+        int elseJump = compileCondition(stmt.getExpr());
+        compileStmt(stmt.getThenBranch());
+        if (stmt.getElseBranch() == null) {
+            patchJump(elseJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            compileStmt(stmt.getElseBranch());
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt) {
+        //return和尾调用都会替换掉当前栈帧，只有正常执行完的时候需要EXIT_BLOCK
+        if (stmt.getSlotCount() > 0) {
+            emit(OpCode.ENTER_BLOCK, stmt.getSlotCount());
+        }
+        for (Stmt s : stmt.getStmts()) {
+            compileStmt(s);
+        }
+        if (stmt.getSlotCount() > 0) {
+            emit(OpCode.EXIT_BLOCK);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitExprStmt(ExprStmt stmt) {
+        if (stmt.getExpr() instanceof AssignExpr) {
+            //赋值语句不需要把值留在栈上
+            AssignExpr assign = (AssignExpr) stmt.getExpr();
+            compile(assign.getValue());
+            line = assign.getToken().getLine();
+            emitVariable(OpCode.STORE_GLOBAL, OpCode.STORE_LOCAL, OpCode.STORE_OUTER,
+                    assign.getDepth(), assign.getSlot());
+            return null;
+        }
+        compile(stmt.getExpr());
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionStmt(FunctionStmt stmt) {
+        Chunk function = compileFunction(stmt);
+        line = stmt.getName().getLine();
+        emit(OpCode.CLOSURE, chunk.addConstant(function));
+        emit(stmt.getDepth() < 0 ? OpCode.DEFINE_GLOBAL : OpCode.DEFINE_LOCAL, stmt.getSlot());
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStmt(PrintStmt stmt) {
+        compile(stmt.getExpression());
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Object visitVarStmt(VarStmt stmt) {
+        if (stmt.getExpr() != null) {
+            compile(stmt.getExpr());
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.getName().getLine();
+        emit(stmt.getDepth() < 0 ? OpCode.DEFINE_GLOBAL : OpCode.DEFINE_LOCAL, stmt.getSlot());
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt) {
+        int loopStart = chunk.count;
+        int exitJump = compileCondition(stmt.getCondition());
+        compileStmt(stmt.getBody());
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt) {
+        if (stmt.getValue() instanceof CallExpr && ((CallExpr) stmt.getValue()).isTailCall()) {
+            CallExpr call = (CallExpr) stmt.getValue();
+            compile(call.getCallee());
+            for (Expr argument : call.getArguments()) {
+                compile(argument);
+            }
+            line = call.getParen().getLine();
+            emit(OpCode.TAIL_CALL, call.getArguments().size());
+            adjustStack(-call.getArguments().size() - 1);
+            return null;
+        }
+        if (stmt.getValue() != null) {
+            compile(stmt.getValue());
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.getKeyword().getLine();
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileStmt(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    /**
+     * 编译if/while的条件，条件为假时跳转，返回待回填的跳转位置。
+     * 条件是比较运算时直接用比较跳转指令，不需要先把Boolean压栈再判断。
+     */
+    private int compileCondition(Expr condition) {
+        if (condition instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) condition;
+            byte jump = -1;
+            switch (binary.getOperator().getType()) {
+                case GREATER:
+                    jump = OpCode.JUMP_IF_NOT_GREATER;
+                    break;
+                case GREATER_EQUAL:
+                    jump = OpCode.JUMP_IF_NOT_GREATER_EQUAL;
+                    break;
+                case LESS:
+                    jump = OpCode.JUMP_IF_NOT_LESS;
+                    break;
+                case LESS_EQUAL:
+                    jump = OpCode.JUMP_IF_NOT_LESS_EQUAL;
+                    break;
+                default:
+                    break;
+            }
+            if (jump != -1) {
+                compile(binary.getLeft());
+                compile(binary.getRight());
+                line = binary.getOperator().getLine();
+                return emitJump(jump);
+            }
+        }
+        compile(condition);
+        return emitJump(OpCode.POP_JUMP_IF_FALSE);
+    }
+
+    /**
+     * depth < 0 是全局变量, 0 是当前栈帧, 大于0的沿着闭包往外找
+     */
+    private void emitVariable(byte global, byte local, byte outer, int depth, int slot) {
+        if (depth < 0) {
+            emit(global, slot);
+        } else if (depth == 0) {
+            emit(local, slot);
+        } else {
+            emit(outer, depth);
+            emitShort(slot);
+        }
+    }
+
+    private void emit(byte op) {
+        chunk.write(op, line);
+        adjustStack(stackEffect(op));
+    }
+
+    private void adjustStack(int delta) {
+        stackDepth += delta;
+        if (stackDepth > chunk.maxStack) {
+            chunk.maxStack = stackDepth;
+        }
+    }
+
+    private void emit(byte op, int operand) {
+        if (operand > 0xffff) {
+            throw new CompileError("too many constants or variables, operand:" + operand);
+        }
+        emit(op);
+        emitShort(operand);
+    }
+
+    private void emitShort(int value) {
+        chunk.write((byte) (value >> 8), line);
+        chunk.write((byte) value, line);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        emitShort(0xffff);
+        return chunk.count - 2;
+    }
+
+    /**
+     * 跳转偏移相对于操作数之后的位置
+     */
+    private void patchJump(int offset) {
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            throw new CompileError("too much code to jump over");
+        }
+        chunk.code[offset] = (byte) (jump >> 8);
+        chunk.code[offset + 1] = (byte) jump;
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = chunk.count - loopStart + 2;
+        if (offset > 0xffff) {
+            throw new CompileError("loop body too large");
+        }
+        emitShort(offset);
+    }
+
+    private static int stackEffect(byte op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_GLOBAL:
+            case OpCode.GET_OUTER:
+            case OpCode.CLOSURE:
+                return 1;
+            case OpCode.POP:
+            case OpCode.STORE_LOCAL:
+            case OpCode.STORE_GLOBAL:
+            case OpCode.STORE_OUTER:
+            case OpCode.RETURN:
+            case OpCode.DEFINE_LOCAL:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.PRINT:
+            case OpCode.POP_JUMP_IF_FALSE:
+            case OpCode.EQUAL:
+            case OpCode.NOT_EQUAL:
+            case OpCode.GREATER:
+            case OpCode.GREATER_EQUAL:
+            case OpCode.LESS:
+            case OpCode.LESS_EQUAL:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+                return -1;
+            case OpCode.JUMP_IF_NOT_GREATER:
+            case OpCode.JUMP_IF_NOT_GREATER_EQUAL:
+            case OpCode.JUMP_IF_NOT_LESS:
+            case OpCode.JUMP_IF_NOT_LESS_EQUAL:
+                return -2;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package minilang.vm;
+
+/**
+ * 字节码指令。操作数紧跟在指令后面，统一是2字节无符号数(大端)。
+ * 注释里是 指令 操作数 : 执行前栈顶 -> 执行后栈顶
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-18
+ */
+public final class OpCode {
+
+    private OpCode() {
+    }
+
+    /**
+     * CONSTANT index : -> value
+     */
+    public static final byte CONSTANT = 0;
+    public static final byte NIL = 1;
+    public static final byte TRUE = 2;
+    public static final byte FALSE = 3;
+    public static final byte POP = 4;
+
+    /**
+     * GET_LOCAL slot : -> value
+     * SET_LOCAL slot : value -> value
+     */
+    public static final byte GET_LOCAL = 5;
+    public static final byte SET_LOCAL = 6;
+    /**
+     * DEFINE_LOCAL slot : value ->
+     */
+    public static final byte DEFINE_LOCAL = 7;
+
+    public static final byte GET_GLOBAL = 8;
+    public static final byte SET_GLOBAL = 9;
+    public static final byte DEFINE_GLOBAL = 10;
+
+    /**
+     * 二元运算 : a b -> result
+     */
+    public static final byte EQUAL = 11;
+    public static final byte NOT_EQUAL = 12;
+    public static final byte GREATER = 13;
+    public static final byte GREATER_EQUAL = 14;
+    public static final byte LESS = 15;
+    public static final byte LESS_EQUAL = 16;
+    public static final byte ADD = 17;
+    public static final byte SUBTRACT = 18;
+    public static final byte MULTIPLY = 19;
+    public static final byte DIVIDE = 20;
+
+    /**
+     * 一元运算 : a -> result
+     */
+    public static final byte NOT = 21;
+    public static final byte NEGATE = 22;
+
+    /**
+     * PRINT : value ->
+     */
+    public static final byte PRINT = 23;
+
+    /**
+     * JUMP offset : 向前跳offset字节
+     * JUMP_IF_FALSE offset : 栈顶为假则跳转，不弹栈，用于and/or
+     * POP_JUMP_IF_FALSE offset : value -> , 为假则跳转，用于if/while
+     * LOOP offset : 向后跳offset字节
+     */
+    public static final byte JUMP = 24;
+    public static final byte JUMP_IF_FALSE = 25;
+    public static final byte POP_JUMP_IF_FALSE = 26;
+    public static final byte LOOP = 27;
+
+    /**
+     * RETURN : value -> , 回到调用方，返回值压到调用方的栈上; 最外层的RETURN结束执行
+     */
+    public static final byte RETURN = 28;
+
+    /**
+     * 下面是几个合并指令，减少热循环里的分派次数
+     * STORE_LOCAL slot : value -> , 赋值语句，等价于SET_LOCAL + POP
+     * STORE_GLOBAL slot : value ->
+     */
+    public static final byte STORE_LOCAL = 29;
+    public static final byte STORE_GLOBAL = 30;
+
+    /**
+     * JUMP_IF_NOT_XXX offset : a b -> , 比较结果为假则跳转，if/while的条件是比较运算时使用
+     */
+    public static final byte JUMP_IF_NOT_GREATER = 31;
+    public static final byte JUMP_IF_NOT_GREATER_EQUAL = 32;
+    public static final byte JUMP_IF_NOT_LESS = 33;
+    public static final byte JUMP_IF_NOT_LESS_EQUAL = 34;
+
+    /**
+     * CALL argc : callee arg1 ... argN -> result
+     * CLOSURE index : -> function, 常量池里的函数Chunk加上当前栈帧组成闭包
+     */
+    public static final byte CALL = 35;
+    public static final byte CLOSURE = 36;
+
+    /**
+     * 外层函数的变量，操作数是depth和slot两个
+     * GET_OUTER depth slot : -> value
+     * SET_OUTER depth slot : value -> value
+     * STORE_OUTER depth slot : value ->
+     */
+    public static final byte GET_OUTER = 37;
+    public static final byte SET_OUTER = 38;
+    public static final byte STORE_OUTER = 39;
+
+    /**
+     * TAIL_CALL argc : callee arg1 ... argN -> , return f(...)的形式，复用当前的调用层次，不保存调用方
+     */
+    public static final byte TAIL_CALL = 40;
+
+    /**
+     * 循环里被闭包捕获的block有自己的Environment
+     * ENTER_BLOCK slotCount : 新建Environment作为当前栈帧，外层是原来的栈帧
+     * EXIT_BLOCK : 回到外层的栈帧
+     */
+    public static final byte ENTER_BLOCK = 41;
+    public static final byte EXIT_BLOCK = 42;
+}
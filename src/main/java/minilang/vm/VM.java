@@ -0,0 +1,364 @@
+package minilang.vm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import minilang.Budget;
+import minilang.BudgetExceededException;
+import minilang.BufferedOutput;
+import minilang.Environment;
+import minilang.Globals;
+import minilang.Optimizer;
+import minilang.Output;
+import minilang.Resolver;
+import minilang.Stmt;
+import minilang.Values;
+
+/**
+ * 基于操作数栈的字节码虚拟机，和{@link minilang.Interpreter}是可以互相替换的两种执行方式:
+ * <pre>
+ *     new Interpreter().interpret(stmts);
+ *     new VM().interpret(stmts);
+ * </pre>
+ * 整个执行过程是一个switch分派循环，ip、sp、操作数栈、局部变量都放在局部变量里，方便JIT做寄存器分配。
+ * <p>
+ * 函数调用不占用Java栈: 调用方的状态保存在堆上的{@link CallFrame}数组里，所有函数共用一个操作数栈，
+ * 递归深度只受{@link #getMaxDepth()}限制，和线程的-Xss无关。
+ *
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-18
+ */
+public class VM {
+
+    public static final int DEFAULT_MAX_DEPTH = 10000;
+
+    /**
+     * 调用方的状态，返回时恢复。数组里的对象反复使用，调用时不分配
+     */
+    private static final class CallFrame {
+        Chunk chunk;
+        Environment environment;
+        int ip;
+    }
+
+    final Globals globals = new Globals();
+
+    private final int maxDepth;
+
+    /**
+     * LOOP和函数调用各算一步
+     */
+    private Budget budget = Budget.unlimited();
+
+    private Output output = new BufferedOutput();
+
+    public VM() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param maxDepth 最大调用深度，超过时报错
+     */
+    public VM(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    public void setOutput(Output output) {
+        this.output = output;
+    }
+
+    public void interpret(List<Stmt> stmts) {
+        run(compile(stmts));
+    }
+
+    public Chunk compile(List<Stmt> stmts) {
+        stmts = new Optimizer().optimize(stmts);
+        int slotCount = new Resolver(globals).resolve(stmts);
+        return new Compiler().compile(stmts, slotCount);
+    }
+
+    public void run(Chunk chunk) {
+        byte[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        Environment environment = new Environment(chunk.slotCount);
+        Object[] locals = environment.getValues();
+        Object[] stack = new Object[Math.max(chunk.maxStack, 16)];
+        CallFrame[] frames = new CallFrame[Math.min(maxDepth, 16)];
+        int frameCount = 0;
+        Globals globals = this.globals;
+        Budget budget = this.budget;
+        Output output = this.output;
+        int sp = 0;
+        int ip = 0;
+        try {
+            for (;;) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT:
+                        stack[sp++] = constants[readShort(code, ip)];
+                        ip += 2;
+                        break;
+                    case OpCode.NIL:
+                        stack[sp++] = null;
+                        break;
+                    case OpCode.TRUE:
+                        stack[sp++] = Boolean.TRUE;
+                        break;
+                    case OpCode.FALSE:
+                        stack[sp++] = Boolean.FALSE;
+                        break;
+                    case OpCode.POP:
+                        sp--;
+                        break;
+                    case OpCode.GET_LOCAL:
+                        stack[sp++] = locals[readShort(code, ip)];
+                        ip += 2;
+                        break;
+                    case OpCode.SET_LOCAL:
+                        locals[readShort(code, ip)] = stack[sp - 1];
+                        ip += 2;
+                        break;
+                    case OpCode.STORE_LOCAL:
+                    case OpCode.DEFINE_LOCAL:
+                        locals[readShort(code, ip)] = stack[--sp];
+                        ip += 2;
+                        break;
+                    case OpCode.GET_GLOBAL:
+                        stack[sp++] = globals.get(readShort(code, ip));
+                        ip += 2;
+                        break;
+                    case OpCode.SET_GLOBAL:
+                        globals.assign(readShort(code, ip), stack[sp - 1]);
+                        ip += 2;
+                        break;
+                    case OpCode.STORE_GLOBAL:
+                        globals.assign(readShort(code, ip), stack[--sp]);
+                        ip += 2;
+                        break;
+                    case OpCode.DEFINE_GLOBAL:
+                        globals.define(readShort(code, ip), stack[--sp]);
+                        ip += 2;
+                        break;
+                    case OpCode.EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = Values.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.NOT_EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = !Values.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = number(stack[sp - 1]) > number(b);
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = number(stack[sp - 1]) >= number(b);
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = number(stack[sp - 1]) < number(b);
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = number(stack[sp - 1]) <= number(b);
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (double) a + (double) b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[sp - 1] = (String) a + (String) b;
+                        } else {
+                            throw new RuntimeException("+ operands must be two numbers or two strings");
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = number(stack[sp - 1]) - number(b);
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = number(stack[sp - 1]) * number(b);
+                        break;
+                    }
+                    case OpCode.DIVIDE: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = number(stack[sp - 1]) / number(b);
+                        break;
+                    }
+                    case OpCode.NOT:
+                        stack[sp - 1] = !Values.isTruthy(stack[sp - 1]);
+                        break;
+                    case OpCode.NEGATE:
+                        stack[sp - 1] = -number(stack[sp - 1]);
+                        break;
+                    case OpCode.PRINT:
+                        output.println(Values.stringfy(stack[--sp]));
+                        break;
+                    case OpCode.JUMP:
+                        ip += readShort(code, ip) + 2;
+                        break;
+                    case OpCode.JUMP_IF_FALSE:
+                        if (Values.isTruthy(stack[sp - 1])) {
+                            ip += 2;
+                        } else {
+                            ip += readShort(code, ip) + 2;
+                        }
+                        break;
+                    case OpCode.POP_JUMP_IF_FALSE:
+                        if (Values.isTruthy(stack[--sp])) {
+                            ip += 2;
+                        } else {
+                            ip += readShort(code, ip) + 2;
+                        }
+                        break;
+                    case OpCode.JUMP_IF_NOT_GREATER:
+                        sp -= 2;
+                        ip += number(stack[sp]) > number(stack[sp + 1]) ? 2 : readShort(code, ip) + 2;
+                        break;
+                    case OpCode.JUMP_IF_NOT_GREATER_EQUAL:
+                        sp -= 2;
+                        ip += number(stack[sp]) >= number(stack[sp + 1]) ? 2 : readShort(code, ip) + 2;
+                        break;
+                    case OpCode.JUMP_IF_NOT_LESS:
+                        sp -= 2;
+                        ip += number(stack[sp]) < number(stack[sp + 1]) ? 2 : readShort(code, ip) + 2;
+                        break;
+                    case OpCode.JUMP_IF_NOT_LESS_EQUAL:
+                        sp -= 2;
+                        ip += number(stack[sp]) <= number(stack[sp + 1]) ? 2 : readShort(code, ip) + 2;
+                        break;
+                    case OpCode.LOOP:
+                        budget.tick();
+                        ip -= readShort(code, ip) - 2;
+                        break;
+                    case OpCode.GET_OUTER:
+                        stack[sp++] = environment.getAt(readShort(code, ip), readShort(code, ip + 2));
+                        ip += 4;
+                        break;
+                    case OpCode.SET_OUTER:
+                        environment.assignAt(readShort(code, ip), readShort(code, ip + 2), stack[sp - 1]);
+                        ip += 4;
+                        break;
+                    case OpCode.STORE_OUTER:
+                        environment.assignAt(readShort(code, ip), readShort(code, ip + 2), stack[--sp]);
+                        ip += 4;
+                        break;
+                    case OpCode.ENTER_BLOCK:
+                        environment = new Environment(readShort(code, ip), environment);
+                        locals = environment.getValues();
+                        ip += 2;
+                        break;
+                    case OpCode.EXIT_BLOCK:
+                        environment = environment.getParent();
+                        locals = environment.getValues();
+                        break;
+                    case OpCode.CLOSURE:
+                        stack[sp++] = new Closure((Chunk) constants[readShort(code, ip)], environment);
+                        ip += 2;
+                        break;
+                    case OpCode.CALL:
+                    case OpCode.TAIL_CALL: {
+                        budget.tick();
+                        boolean tailCall = code[ip - 1] == OpCode.TAIL_CALL;
+                        int argc = readShort(code, ip);
+                        ip += 2;
+                        Object callee = stack[sp - argc - 1];
+                        if (!(callee instanceof Closure)) {
+                            throw new RuntimeException("can only call functions");
+                        }
+                        Chunk function = ((Closure) callee).chunk;
+                        if (function.arity != argc) {
+                            throw new RuntimeException("expected " + function.arity + " arguments but got " + argc);
+                        }
+                        //尾调用直接返回到当前函数的调用方，不需要保存当前函数的状态
+                        if (!tailCall) {
+                            if (frameCount == frames.length) {
+                                if (frameCount >= maxDepth) {
+                                    throw new RuntimeException("stack overflow, max depth " + maxDepth);
+                                }
+                                frames = Arrays.copyOf(frames, Math.min(maxDepth, frameCount * 2));
+                            }
+                            CallFrame frame = frames[frameCount];
+                            if (frame == null) {
+                                frame = new CallFrame();
+                                frames[frameCount] = frame;
+                            }
+                            frameCount++;
+                            frame.chunk = chunk;
+                            frame.environment = environment;
+                            frame.ip = ip;
+                        }
+
+                        environment = new Environment(function.slotCount, ((Closure) callee).enclosing);
+                        locals = environment.getValues();
+                        sp -= argc + 1;
+                        System.arraycopy(stack, sp + 1, locals, 0, argc);
+                        if (sp + function.maxStack + 1 > stack.length) {
+                            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + function.maxStack + 1));
+                        }
+                        chunk = function;
+                        code = function.code;
+                        constants = function.constants;
+                        ip = 0;
+                        break;
+                    }
+                    case OpCode.RETURN: {
+                        Object result = stack[--sp];
+                        if (frameCount == 0) {
+                            return;
+                        }
+                        //函数体的语句不会在栈上留东西，sp已经回到了callee的位置
+                        CallFrame frame = frames[--frameCount];
+                        chunk = frame.chunk;
+                        code = chunk.code;
+                        constants = chunk.constants;
+                        environment = frame.environment;
+                        locals = environment.getValues();
+                        ip = frame.ip;
+                        frame.environment = null;
+                        stack[sp++] = result;
+                        break;
+                    }
+                    default:
+                        throw new RuntimeException("unknown opcode " + code[ip - 1]);
+                }
+            }
+        } catch (BudgetExceededException e) {
+            //保留异常类型，调用方据此区分超限和脚本错误
+            throw e;
+        } catch (RuntimeException e) {
+            throw new RuntimeException(e.getMessage() + " at line " + chunk.getLine(ip - 1), e);
+        } finally {
+            output.flush();
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw new RuntimeException("Operator must be a number!");
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import minilang.AstCache;
+import minilang.BinaryExpr;
+import minilang.Budget;
+import minilang.BudgetExceededException;
+import minilang.BufferedOutput;
+import minilang.Interpreter;
+import minilang.Lexer;
+import minilang.Output;
+import minilang.Parser;
+import minilang.PrintStmt;
+import minilang.Program;
+import minilang.ScriptExecutor;
+import minilang.Stmt;
+import minilang.StringOutput;
+import minilang.TokenStream;
+import minilang.VarStmt;
+import minilang.jit.Jit;
+
+/**
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-07-02
+ */
+public class InterpreterTest {
+
+    @Test
+    public void testSpecialization() {
+        List<Stmt> stmts = parse("var a = 1; var b = 2; print a + b; a = \"x\"; b = \"y\";");
+        BinaryExpr plus = (BinaryExpr) ((PrintStmt) stmts.get(2)).getExpression();
+        Interpreter interpreter = new Interpreter();
+        Assertions.assertEquals("3\n", run(stmts, interpreter));
+        Assertions.assertEquals(BinaryExpr.Specialization.ADD_DOUBLE, plus.getSpecialization());
+
+        //同一个节点看到字符串之后退化成通用版本，结果依然正确
+        Assertions.assertEquals("xy\n", run(stmts.subList(2, 3), interpreter));
+        Assertions.assertEquals(BinaryExpr.Specialization.GENERIC, plus.getSpecialization());
+    }
+
+    @Test
+    public void testStringSpecialization() {
+        List<Stmt> stmts = parse("var a = \"a\"; var s = a + \"b\"; print s == \"ab\";");
+        Assertions.assertEquals("true\n", run(stmts, new Interpreter()));
+        Assertions.assertEquals(BinaryExpr.Specialization.CONCAT_STRING,
+                ((BinaryExpr) ((VarStmt) stmts.get(1)).getExpr()).getSpecialization());
+    }
+
+    @Test
+    public void testUnboxedArithmetic() {
+        String source = "{" +
+                "    var i = 0;" +
+                "    var r = 0;" +
+                "    while (i < 3) {" +
+                "        r = (r + i) * 2 - -i / 2;" +
+                "        i = i + 1;" +
+                "    }" +
+                "    print r;" +
+                "}" +
+                "var v = 1;" +
+                "var w = 2;" +
+                "var n = 0;" +
+                "while (n < 2) {" +
+                "    print (v + w) + (v + w);" +
+                "    v = \"a\";" +
+                "    w = \"b\";" +
+                "    n = n + 1;" +
+                "}";
+        Assertions.assertEquals("10\n6\nabab\n", run(parse(source), new Interpreter()));
+    }
+
+    @Test
+    public void testFunction() {
+        String source = "fun fib(n) {" +
+                "    if (n < 2) return n;" +
+                "    return fib(n - 1) + fib(n - 2);" +
+                "}" +
+                "print fib(20);" +
+                "fun find(limit) {" +
+                "    var i = 0;" +
+                "    while (true) {" +
+                "        { var j = i * i; if (j > limit) return i; }" +
+                "        i = i + 1;" +
+                "    }" +
+                "}" +
+                "print find(50);" +
+                "fun noReturn() { var x = 1; }" +
+                "print noReturn();" +
+                "print fib;";
+        Assertions.assertEquals("6765\n8\nnil\n<fn fib>\n", run(parse(source), new Interpreter()));
+    }
+
+    @Test
+    public void testClosure() {
+        String source = "fun makeCounter() {" +
+                "    var count = 0;" +
+                "    fun counter() {" +
+                "        count = count + 1;" +
+                "        return count;" +
+                "    }" +
+                "    return counter;" +
+                "}" +
+                "var a = makeCounter();" +
+                "var b = makeCounter();" +
+                "a(); a();" +
+                "print a();" +
+                "print b();" +
+                "fun adder(x) { fun add(y) { return x + y; } return add; }" +
+                "print adder(10)(5);";
+        Assertions.assertEquals("3\n1\n15\n", run(parse(source), new Interpreter()));
+    }
+
+    @Test
+    public void testClosureInLoop() {
+        //循环里每次迭代的变量都是新的，两个闭包捕获的不是同一个j
+        String source = "var first = nil; var second = nil; var i = 0;" +
+                "while (i < 2) {" +
+                "    var j = i;" +
+                "    fun f() { print j; }" +
+                "    if (i == 0) first = f; else second = f;" +
+                "    i = i + 1;" +
+                "}" +
+                "first(); second();" +
+                "fun make() {" +
+                "    var k = 0; var a = nil; var b = nil;" +
+                "    while (k < 2) {" +
+                "        var v = k * 10;" +
+                "        fun g() { return v; }" +
+                "        if (k == 0) a = g; else b = g;" +
+                "        k = k + 1;" +
+                "    }" +
+                "    return a() + b();" +
+                "}" +
+                "print make();" +
+                "fun h() { while (true) { var x = 5; fun q() { return x; } return q(); } }" +
+                "print h();";
+        Assertions.assertEquals("0\n1\n10\n5\n", run(parse(source), new Interpreter()));
+        Interpreter interpreter = new Interpreter();
+        interpreter.setJit(new Jit(1));
+        Assertions.assertEquals("0\n1\n10\n5\n", run(parse(source), interpreter));
+    }
+
+    @Test
+    public void testTailCall() {
+        //尾调用不增加Java栈的深度, 这个递归深度在默认的栈大小下会StackOverflowError
+        String source = "fun loop(i, acc) {" +
+                "    if (i == 0) return acc;" +
+                "    return loop(i - 1, acc + 1);" +
+                "}" +
+                "print loop(200000, 0);" +
+                "fun isEven(n) { if (n == 0) return true; return isOdd(n - 1); }" +
+                "fun isOdd(n) { if (n == 0) return false; return isEven(n - 1); }" +
+                "print isEven(200001);";
+        Assertions.assertEquals("200000\nfalse\n", run(parse(source), new Interpreter()));
+        Interpreter interpreter = new Interpreter();
+        interpreter.setJit(null);
+        Assertions.assertEquals("200000\nfalse\n", run(parse(source), interpreter));
+    }
+
+    @Test
+    public void testCallSites() {
+        //同一个调用点: 重新赋值的全局函数、多个闭包、调用很多不同的函数
+        String source = "fun one() { return 1; }" +
+                "fun two() { return 2; }" +
+                "var f = one;" +
+                "fun callF() { return f(); }" +
+                "print callF();" +
+                "f = two;" +
+                "print callF();" +
+                "fun make(n) { fun g() { return n; } return g; }" +
+                "fun apply(h) { return h(); }" +
+                "print apply(make(3)) + apply(make(4));" +
+                "fun a() { return \"a\"; } fun b() { return \"b\"; } fun c() { return \"c\"; }" +
+                "fun d() { return \"d\"; } fun e() { return \"e\"; }" +
+                "print apply(a) + apply(b) + apply(c) + apply(d) + apply(e) + apply(a);";
+        Assertions.assertEquals("1\n2\n7\nabcdea\n", run(parse(source), new Interpreter()));
+
+        //同一个调用点调用过别的函数之后参数个数依然要检查
+        Assertions.assertThrows(RuntimeException.class, () -> run(parse(
+                "fun apply(h) { return h(); } fun z() {} fun y(x) {} apply(z); apply(y);"), new Interpreter()));
+    }
+
+    @Test
+    public void testCallErrors() {
+        Assertions.assertThrows(RuntimeException.class,
+                () -> run(parse("fun f(a, b) { return a; } f(1);"), new Interpreter()));
+        Assertions.assertThrows(RuntimeException.class, () -> run(parse("var f = 1; f();"), new Interpreter()));
+        Assertions.assertThrows(RuntimeException.class, () -> run(parse("return 1;"), new Interpreter()));
+    }
+
+    @Test
+    public void testStreaming() {
+        //边解析边执行，前面语句定义的全局变量和函数后面可以用
+        String source = "var sum = 0;" +
+                "fun add(n) { sum = sum + n; }" +
+                "{ var i = 1; while (i <= 100) { add(i); i = i + 1; } }" +
+                "print sum;" +
+                "fun get() { return sum + later; }" +
+                "var later = 1;" +
+                "print get();";
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer));
+        try {
+            new Interpreter().interpret(new Parser(new TokenStream(new StringReader(source))));
+        } finally {
+            System.setOut(out);
+        }
+        Assertions.assertEquals("5050\n5051\n", buffer.toString());
+    }
+
+    @Test
+    public void testStreamingFlushOnce() {
+        //边解析边执行时输出也是整个脚本结束时才flush一次，顶层block里的闭包捕获的变量不会被后面的语句覆盖
+        String source = "var f = nil;" +
+                "{ var x = 1; fun get() { return x; } f = get; }" +
+                "{ var y = 2; print y; }" +
+                "print f();" +
+                "print 3;";
+        StringBuilder text = new StringBuilder();
+        int[] flushes = new int[1];
+        Interpreter interpreter = new Interpreter();
+        interpreter.setOutput(new Output() {
+            @Override
+            public void println(String line) {
+                text.append(line).append('\n');
+            }
+
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        });
+        interpreter.interpret(new Parser(new TokenStream(new StringReader(source))));
+        Assertions.assertEquals("2\n1\n3\n", text.toString());
+        Assertions.assertEquals(1, flushes[0]);
+
+        //出错时也flush
+        Assertions.assertThrows(RuntimeException.class,
+                () -> interpreter.interpret(new Parser(new TokenStream(new StringReader("print 4; print nil + 1;")))));
+        Assertions.assertEquals(2, flushes[0]);
+    }
+
+    @Test
+    public void testAstCache(@TempDir Path dir) throws IOException {
+        String source = "var greeting = \"你好\";" +
+                "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }" +
+                "for (var i = 0; i < 3; i = i + 1) { print greeting; print fib(i + 10); }" +
+                "print !nil and -1.5 < 2 or false;";
+        String expected = run(parse(source), new Interpreter());
+        Path script = dir.resolve("script.ml");
+        Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+        Path cacheDir = dir.resolve("cache");
+        AstCache cache = new AstCache(cacheDir);
+
+        //第一次解析并写缓存，第二次从缓存读出来的语法树执行结果一样
+        Assertions.assertEquals(expected, run(cache.load(script), new Interpreter()));
+        Path cacheFile;
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            cacheFile = files.findFirst().get();
+        }
+        Assertions.assertEquals(expected, run(cache.load(script), new Interpreter()));
+
+        //长度字段损坏时不会按损坏的长度分配数组
+        byte[] bytes = Files.readAllBytes(cacheFile);
+        ByteBuffer.wrap(bytes).putInt(8 + 32, Integer.MAX_VALUE);
+        Files.write(cacheFile, bytes);
+        Assertions.assertEquals(expected, run(cache.load(script), new Interpreter()));
+
+        //缓存损坏时重新解析
+        Files.write(cacheFile, new byte[] {1, 2, 3});
+        Assertions.assertEquals(expected, run(cache.load(script), new Interpreter()));
+        Assertions.assertEquals(expected, run(cache.load(script), new Interpreter()));
+
+        //缓存目录不可写时照常返回解析结果
+        Path notDirectory = dir.resolve("file");
+        Files.write(notDirectory, new byte[0]);
+        Assertions.assertEquals(expected, run(new AstCache(notDirectory).load(script), new Interpreter()));
+    }
+
+    @Test
+    public void testCompileTwice() {
+        //同一个语句列表编译两次、再解释执行一次，各自的全局变量slot不一样，互不影响
+        List<Stmt> stmts = parse("var a = 1; var b = 2; fun f() { return a - b; } print f();");
+        Program first = Program.compile(stmts);
+        Program second = Program.compile(stmts);
+        Interpreter other = new Interpreter();
+        for (int i = 0; i < 100; i++) {
+            other.getGlobals().define("z" + i, 0.0);
+        }
+        Assertions.assertEquals("-1\n", run(stmts, other));
+        for (Program program : new Program[] {first, second}) {
+            Interpreter context = program.newContext();
+            StringOutput output = new StringOutput();
+            context.setOutput(output);
+            context.execute(program);
+            Assertions.assertEquals("-1\n", output.getText());
+        }
+    }
+
+    @Test
+    public void testProgramSharedByThreads() throws Exception {
+        //同一个Program在多个线程里同时执行，全局变量互不影响，JIT编译结果共享
+        String source = "var n = 0;" +
+                "fun fib(k) { if (k < 2) return k; return fib(k - 1) + fib(k - 2); }" +
+                "while (n < 1000) { n = n + 1; }" +
+                "print n + fib(15);";
+        Program program = Program.compile(parse(source), new Jit(10));
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(program::run));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            System.setOut(out);
+        }
+        String[] lines = buffer.toString().split("\n");
+        Assertions.assertEquals(200, lines.length);
+        for (String line : lines) {
+            Assertions.assertEquals("1610", line);
+        }
+
+        //不是这个程序创建的上下文不能执行
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Interpreter().execute(program));
+    }
+
+    @Test
+    public void testScriptExecutor() throws Exception {
+        //上下文复用时全局变量要恢复成未定义，否则第二次执行var n会报重复定义
+        Program program = Program.compile(parse("var n = 0; while (n < 100) { n = n + 1; } print n;"));
+        Program failing = Program.compile(parse("var x = 1; x();"));
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        CompletableFuture<Void> failed;
+        try (ScriptExecutor executor = new ScriptExecutor(4)) {
+            for (int i = 0; i < 100; i++) {
+                futures.add(executor.submit(program));
+            }
+            failed = executor.submit(failing);
+            for (CompletableFuture<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            System.setOut(out);
+        }
+        Assertions.assertEquals(100, buffer.toString().split("\n").length);
+        for (String line : buffer.toString().split("\n")) {
+            Assertions.assertEquals("100", line);
+        }
+        Assertions.assertTrue(failed.isCompletedExceptionally());
+
+        //超过步数限制的执行以BudgetExceededException结束
+        try (ScriptExecutor executor = new ScriptExecutor(2)) {
+            CompletableFuture<Void> future = executor.submit(Program.compile(parse("while (true) {}")), 1000, 10000);
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, future::get);
+            Assertions.assertTrue(e.getCause() instanceof BudgetExceededException);
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        //解释执行的循环、JIT编译后的循环、编译后的自身尾调用都会被步数限制打断
+        String[] sources = {
+                "while (true) {}",
+                "fun f(n) { if (n > 0) return n; while (true) {} } f(1); f(0);",
+                "fun g(n) { return g(n + 1); } g(0);"
+        };
+        for (String source : sources) {
+            Program program = Program.compile(parse(source), new Jit(1));
+            Interpreter context = program.newContext();
+            context.setBudget(new Budget(100000, Budget.UNLIMITED));
+            BudgetExceededException e = Assertions.assertThrows(BudgetExceededException.class,
+                    () -> context.execute(program), source);
+            Assertions.assertTrue(e.getMessage().contains("step limit"));
+        }
+
+        Program program = Program.compile(parse("while (true) {}"));
+        Interpreter context = program.newContext();
+        context.setBudget(new Budget(Budget.UNLIMITED, 50));
+        BudgetExceededException e = Assertions.assertThrows(BudgetExceededException.class,
+                () -> context.execute(program));
+        Assertions.assertTrue(e.getMessage().contains("time limit"));
+
+        //限制之内正常执行完
+        Program loop = Program.compile(parse("var i = 0; while (i < 10000) { i = i + 1; }"));
+        Interpreter ok = loop.newContext();
+        ok.setBudget(new Budget(10000, 10000));
+        ok.execute(loop);
+        Assertions.assertEquals(10000, ok.getBudget().getSteps());
+
+        //很大的超时时间不会溢出成已经过期的deadline
+        Interpreter large = loop.newContext();
+        large.setBudget(new Budget(Budget.UNLIMITED, Long.MAX_VALUE / 1000));
+        large.execute(loop);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Budget(-1, Budget.UNLIMITED));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Budget(Budget.UNLIMITED, -1));
+    }
+
+    @Test
+    public void testOutput() {
+        //解释执行和JIT编译后的print都写到同一个Output
+        String source = "fun show(n) { print n; } var i = 0; while (i < 5) { show(i); i = i + 1; } print \"end\";";
+        Program program = Program.compile(parse(source), new Jit(2));
+        Interpreter context = program.newContext();
+        StringOutput output = new StringOutput();
+        context.setOutput(output);
+        context.execute(program);
+        Assertions.assertEquals("0\n1\n2\n3\n4\nend\n", output.getText());
+
+        //缓冲区超过阈值时提前写出，脚本报错时也会写出已经print的内容
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Interpreter interpreter = new Interpreter();
+        interpreter.setOutput(new BufferedOutput(new PrintStream(bytes), 4) {
+            @Override
+            public void println(String text) {
+                super.println(text);
+                if ("3".equals(text)) {
+                    //阈值是4个字符，打印到第3行时前两行已经写出
+                    Assertions.assertTrue(bytes.size() > 0);
+                }
+            }
+        });
+        Assertions.assertThrows(RuntimeException.class,
+                () -> interpreter.interpret(parse("print 1; print 2; print 3; print nil + 1;")));
+        Assertions.assertEquals("1\n2\n3\n", bytes.toString().replace(System.lineSeparator(), "\n"));
+    }
+
+    private List<Stmt> parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    private String run(List<Stmt> stmts, Interpreter interpreter) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer));
+        try {
+            interpreter.interpret(stmts);
+        } finally {
+            System.setOut(out);
+        }
+        return buffer.toString();
+    }
+}
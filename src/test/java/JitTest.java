@@ -0,0 +1,132 @@
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import minilang.FunctionStmt;
+import minilang.Interpreter;
+import minilang.Lexer;
+import minilang.MiniFunction;
+import minilang.Parser;
+import minilang.Program;
+import minilang.Stmt;
+import minilang.jit.CompiledFunction;
+import minilang.jit.Jit;
+
+/**
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-25
+ */
+public class JitTest {
+
+    @Test
+    public void testCompileLoop() {
+        String source = "var total = 0;" +
+                "fun sum(n) {" +
+                "    var s = 0;" +
+                "    var i = 0;" +
+                "    while (i < n and !(i < 0)) {" +
+                "        s = s + i;" +
+                "        i = i + 1;" +
+                "    }" +
+                "    total = total + s;" +
+                "    if (s > 100) return \"big\" + \"!\"; else return -s;" +
+                "}";
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> stmts = new Parser(new Lexer(source).scanTokens()).parse();
+        interpreter.interpret(stmts);
+
+        CompiledFunction sum = new Jit().compile((FunctionStmt) stmts.get(1));
+        Assertions.assertNotNull(sum);
+        Assertions.assertEquals("big!", sum.call(interpreter, null, new Object[] {100.0}));
+        Assertions.assertEquals(-10.0, sum.call(interpreter, null, new Object[] {5.0}));
+        Assertions.assertEquals(4960.0, interpreter.getGlobals().get(0));
+    }
+
+    @Test
+    public void testFallback() {
+        String source = "fun f(n) { fun g() { return n; } return g; }";
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> stmts = new Parser(new Lexer(source).scanTokens()).parse();
+        interpreter.interpret(stmts);
+        Assertions.assertNull(new Jit().compile((FunctionStmt) stmts.get(0)));
+    }
+
+    @Test
+    public void testCallThroughInterpreter() {
+        //阈值为1, 第一次调用就编译，递归调用走interpreter.call再进入生成的代码
+        String source = "var calls = 0;" +
+                "fun fib(n) {" +
+                "    calls = calls + 1;" +
+                "    if (n < 2) return n;" +
+                "    return fib(n - 1) + fib(n - 2);" +
+                "}" +
+                "var result = fib(15);";
+        Interpreter interpreter = new Interpreter();
+        interpreter.setJit(new Jit(1));
+        interpreter.interpret(new Parser(new Lexer(source).scanTokens()).parse());
+        Assertions.assertEquals(1973.0, interpreter.getGlobals().get(0));
+        Assertions.assertEquals(610.0, interpreter.getGlobals().get(2));
+    }
+
+    @Test
+    public void testMutualTailCall() throws InterruptedException {
+        //参数个数不同的函数互相尾调用，编译之后也不会让Java栈变深
+        String source = "fun even(n) { if (n == 0) return true; return odd(n - 1, n); }" +
+                "fun odd(n, x) { if (n == 0) return false; return even(n - 1); }" +
+                "var result = even(200001);";
+        Interpreter interpreter = new Interpreter();
+        interpreter.setJit(new Jit(10));
+        Thread thread = new Thread(null,
+                () -> interpreter.interpret(new Parser(new Lexer(source).scanTokens()).parse()), "tail", 512 * 1024);
+        Throwable[] error = new Throwable[1];
+        thread.setUncaughtExceptionHandler((t, e) -> error[0] = e);
+        thread.start();
+        thread.join();
+        Assertions.assertNull(error[0]);
+        Assertions.assertEquals(false, interpreter.getGlobals().get(2));
+        Assertions.assertNotNull(((MiniFunction) interpreter.getGlobals().get(1)).getCompiled());
+    }
+
+    @Test
+    public void testHotDeclaration() {
+        //循环里每次都新建闭包，调用次数累计在FunctionStmt上，达到阈值之后新建的闭包直接使用编译好的代码
+        String source = "var last = nil;" +
+                "var i = 0;" +
+                "while (i < 5) {" +
+                "    fun f(x) { return x + 1; }" +
+                "    f(i);" +
+                "    last = f;" +
+                "    i = i + 1;" +
+                "}";
+        Program program = Program.compile(new Parser(new Lexer(source).scanTokens()).parse(), new Jit(3));
+        Interpreter first = program.newContext();
+        first.execute(program);
+        Assertions.assertNotNull(((MiniFunction) first.getGlobals().get(0)).getCompiled());
+
+        //新的执行上下文不需要重新解释执行到阈值
+        Interpreter second = program.newContext();
+        second.execute(program);
+        Assertions.assertNotNull(((MiniFunction) second.getGlobals().get(0)).getCompiled());
+    }
+
+    @Test
+    public void testRuntimeErrors() {
+        //编译前后报错信息一样，都带着Token和行号
+        String[] bodies = {"return a - b;", "return a + b;", "if (a < b) return 1;", "return -b;",
+                "return a();", "return missing;", "missing = 1;", "return f(a);"};
+        for (String body : bodies) {
+            String source = "fun f(a, b) {\n" + body + "\n}\nf(1, \"x\");";
+            String interpreted = runtimeError(source, null);
+            Assertions.assertEquals(interpreted, runtimeError(source, new Jit(1)), body);
+            Assertions.assertTrue(interpreted.contains(", 2, "), interpreted);
+        }
+    }
+
+    private String runtimeError(String source, Jit jit) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setJit(jit);
+        List<Stmt> stmts = new Parser(new Lexer(source).scanTokens()).parse();
+        return Assertions.assertThrows(RuntimeException.class, () -> interpreter.interpret(stmts)).getMessage();
+    }
+}
@@ -1,16 +1,44 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import minilang.AssignExpr;
 import minilang.BinaryExpr;
 import minilang.Expr;
+import minilang.ExprStmt;
 import minilang.Interpreter;
+import minilang.IfStmt;
 import minilang.Lexer;
 import minilang.LiteralExpr;
+import minilang.LogicalExpr;
+import minilang.MappedSource;
+import minilang.Optimizer;
+import minilang.BlockStmt;
+import minilang.Bundle;
+import minilang.BundleLoader;
+import minilang.Globals;
+import minilang.GroupExpr;
 import minilang.Parser;
+import minilang.PrintStmt;
+import minilang.Resolver;
 import minilang.Stmt;
 import minilang.Token;
+import minilang.TokenBuffer;
+import minilang.TokenStream;
+import minilang.TokenType;
+import minilang.UnaryExpr;
+import minilang.Values;
+import minilang.VarStmt;
+import minilang.VariableExpr;
 
 /**
  * @author tianbing <tianbing@kuaishou.com>
@@ -38,12 +66,231 @@ public class ParserTest {
         Assertions.assertTrue(binary.getRight()instanceof BinaryExpr);
     }
 
+    @Test
+    public void testOperatorTree() {
+        Assertions.assertEquals("(- (- 1 2) 3)", tree(sourceToExpr("1 - 2 - 3")));
+        Assertions.assertEquals("(+ (* 1 2) (/ 3 4))", tree(sourceToExpr("1 * 2 + 3 / 4")));
+        Assertions.assertEquals("(or a (and b (== c (< d (+ e (* f (- g)))))))",
+                tree(sourceToExpr("a or b and c == d < e + f * -g")));
+        Assertions.assertEquals("(or (and (and a b) c) (! (! d)))", tree(sourceToExpr("a and b and c or !!d")));
+        Assertions.assertEquals("(* (group (+ 1 2)) 3)", tree(sourceToExpr("(1 + 2) * 3")));
+        Assertions.assertEquals("(= a (= b (< 1 2)))", tree(sourceToExpr("a = b = 1 < 2")));
+    }
+
+    @Test
+    public void testLongExpression() {
+        //几万个操作数的表达式不会栈溢出
+        StringBuilder source = new StringBuilder("print 0");
+        for (int i = 1; i < 50000; i++) {
+            source.append(i % 2 == 0 ? " + " : " and ").append(i);
+        }
+        source.append(";");
+        List<Stmt> stmts = new Parser(new Lexer(source.toString()).scan()).parse();
+        Assertions.assertTrue(((PrintStmt) stmts.get(0)).getExpression() instanceof LogicalExpr);
+    }
+
+    @Test
+    public void testTokenLexeme() {
+        List<Token> tokens = new Lexer("var ab = (1.5); print(\"s\");").scanTokens();
+        Assertions.assertEquals("ab", tokens.get(1).getLexeme());
+        Assertions.assertEquals("1.5", tokens.get(4).getLexeme());
+        Assertions.assertEquals("\"s\"", tokens.get(9).getLexeme());
+        Assertions.assertEquals("s", tokens.get(9).getLiteral());
+        //符号和关键字共用同一个字符串
+        Assertions.assertSame(tokens.get(3).getLexeme(), tokens.get(8).getLexeme());
+        Assertions.assertSame(tokens.get(6).getLexeme(), tokens.get(11).getLexeme());
+        Assertions.assertEquals(9, tokens.get(3).getStart());
+    }
+
+    @Test
+    public void testTokenBuffer() {
+        TokenBuffer tokens = new Lexer("var x = 1;\nprint x + \"a\";").scan();
+        Assertions.assertEquals(11, tokens.size());
+        Assertions.assertEquals(TokenType.IDENTIFIER, tokens.type(1));
+        Assertions.assertEquals("x", tokens.text(1));
+        Assertions.assertEquals(1.0, tokens.literal(3));
+        Assertions.assertEquals("a", tokens.literal(8));
+        Assertions.assertEquals(2, tokens.line(5));
+        Assertions.assertEquals(TokenType.EOF, tokens.type(10));
+
+        List<Stmt> stmts = new Parser(tokens).parse();
+        Assertions.assertEquals(2, stmts.size());
+        Assertions.assertEquals("x", ((VarStmt) stmts.get(0)).getName().getLexeme());
+    }
+
+    @Test
+    public void testKeyword() {
+        TokenBuffer tokens = new Lexer("and class else false for fun if nil or print return true var while " +
+                "a an andd f fa fo fora fu funs i iff n nil_ o p r t v w whiles classes _and").scan();
+        TokenType[] keywords = {TokenType.AND, TokenType.CLASS, TokenType.ELSE, TokenType.FALSE, TokenType.FOR,
+                TokenType.FUN, TokenType.IF, TokenType.NIL, TokenType.OR, TokenType.PRINT, TokenType.RETURN,
+                TokenType.TRUE, TokenType.VAR, TokenType.WHILE};
+        for (int i = 0; i < keywords.length; i++) {
+            Assertions.assertEquals(keywords[i], tokens.type(i));
+        }
+        for (int i = keywords.length; i < tokens.size() - 1; i++) {
+            Assertions.assertEquals(TokenType.IDENTIFIER, tokens.type(i), tokens.text(i));
+        }
+    }
+
+    @Test
+    public void testIdentifierInterned() {
+        //同名标识符的lexeme和Symbol都是同一个对象
+        List<Stmt> stmts = new Parser(new Lexer("var count = 1; print count; count = 2;").scan()).parse();
+        VarStmt declared = (VarStmt) stmts.get(0);
+        VariableExpr used = (VariableExpr) ((PrintStmt) stmts.get(1)).getExpression();
+        AssignExpr assigned = (AssignExpr) ((ExprStmt) stmts.get(2)).getExpr();
+        Assertions.assertEquals("count", used.getName().getLexeme());
+        Assertions.assertSame(declared.getName().getLexeme(), used.getName().getLexeme());
+        Assertions.assertEquals("count", declared.getSymbol().getName());
+        Assertions.assertSame(declared.getSymbol(), used.getSymbol());
+        Assertions.assertSame(declared.getSymbol(), assigned.getSymbol());
+    }
+
+    @Test
+    public void testNumberLiteral() {
+        String[] numbers = {"0", "7", "1023", "1024", "007", "123456789012345678901234567890",
+                "9007199254740993", "0.1", "3.14159", "0.30000000000000004", "123.000",
+                "1.23456789012345678901234567890", "0.0000000000000000000000001"};
+        for (String number : numbers) {
+            TokenBuffer tokens = new Lexer(number).scan();
+            Assertions.assertEquals(Double.parseDouble(number), tokens.literal(0), number);
+        }
+        //小整数复用同一个对象
+        TokenBuffer tokens = new Lexer("42 42").scan();
+        Assertions.assertSame(tokens.literal(0), tokens.literal(1));
+    }
+
+    @Test
+    public void testMappedSource() throws IOException {
+        //直接在UTF-8字节上扫描，字符串里的多字节字符截取时才解码
+        String source = "var s = \"你好\";\nprint s + \"!\";";
+        Path file = Files.createTempFile("minilang", ".ml");
+        try {
+            Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+            TokenBuffer tokens = new Lexer(MappedSource.map(file)).scan();
+            TokenBuffer expected = new Lexer(source).scan();
+            Assertions.assertEquals(expected.size(), tokens.size());
+            for (int i = 0; i < tokens.size(); i++) {
+                Assertions.assertEquals(expected.type(i), tokens.type(i));
+                Assertions.assertEquals(expected.literal(i), tokens.literal(i));
+                Assertions.assertEquals(expected.line(i), tokens.line(i));
+            }
+            Assertions.assertEquals("你好", tokens.literal(3));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testBundleLoader(@TempDir Path dir) throws IOException {
+        //多个文件并行解析，合并后的顺序和文件顺序一致
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Path file = dir.resolve("module" + i + ".ml");
+            StringBuilder source = new StringBuilder();
+            for (int j = 0; j < 100 * (20 - i); j++) {
+                source.append("var m").append(i).append("_").append(j).append(" = ").append(j).append(";\n");
+            }
+            Files.write(file, source.toString().getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Bundle bundle = new BundleLoader(pool, null).load(files);
+            Assertions.assertEquals(20, bundle.getFileCount());
+            int index = 0;
+            for (int i = 0; i < 20; i++) {
+                for (int j = 0; j < 100 * (20 - i); j++) {
+                    VarStmt stmt = (VarStmt) bundle.getStmts().get(index++);
+                    Assertions.assertEquals("m" + i + "_" + j, stmt.getName().getLexeme());
+                }
+            }
+            Assertions.assertEquals(index, bundle.getStmts().size());
+
+            //报错信息里带上出错的文件
+            Path broken = dir.resolve("broken.ml");
+            Files.write(broken, "print (;".getBytes(StandardCharsets.UTF_8));
+            files.add(5, broken);
+            RuntimeException e = Assertions.assertThrows(RuntimeException.class,
+                    () -> new BundleLoader(pool, null).load(files));
+            Assertions.assertTrue(e.getMessage().startsWith(broken.toString()), e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testTokenStream() {
+        //足够长的脚本，会多次丢弃窗口，长标识符和字符串会跨过Reader的缓冲区边界
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            source.append("var v").append(i).append(" = \"").append(i).append("\" + \"x\";\n");
+        }
+        source.append("print long");
+        for (int i = 0; i < 10000; i++) {
+            source.append('_');
+        }
+        source.append(";");
+        TokenBuffer expected = new Lexer(source.toString()).scan();
+        TokenStream stream = new TokenStream(new StringReader(source.toString()));
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.type(i), stream.type(i));
+            Assertions.assertEquals(expected.literal(i), stream.literal(i));
+            Assertions.assertEquals(expected.token(i).getLexeme(), stream.token(i).getLexeme());
+            Assertions.assertEquals(expected.line(i), stream.token(i).getLine());
+        }
+
+        Parser parser = new Parser(new TokenStream(new StringReader(source.toString())));
+        int count = 0;
+        while (parser.parseStatement() != null) {
+            count++;
+        }
+        Assertions.assertEquals(3001, count);
+    }
+
+    private String tree(Expr expr) {
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            return "(" + binary.getOperator().getLexeme() + " " + tree(binary.getLeft()) + " " + tree(binary.getRight()) + ")";
+        }
+        if (expr instanceof LogicalExpr) {
+            LogicalExpr logical = (LogicalExpr) expr;
+            return "(" + logical.getOperator().getLexeme() + " " + tree(logical.getLeft()) + " " + tree(logical.getRight()) + ")";
+        }
+        if (expr instanceof UnaryExpr) {
+            return "(" + ((UnaryExpr) expr).getOperator().getLexeme() + " " + tree(((UnaryExpr) expr).getRight()) + ")";
+        }
+        if (expr instanceof GroupExpr) {
+            return "(group " + tree(((GroupExpr) expr).getExpr()) + ")";
+        }
+        if (expr instanceof AssignExpr) {
+            return "(= " + ((AssignExpr) expr).getToken().getLexeme() + " " + tree(((AssignExpr) expr).getValue()) + ")";
+        }
+        if (expr instanceof VariableExpr) {
+            return ((VariableExpr) expr).getName().getLexeme();
+        }
+        return Values.stringfy(((LiteralExpr) expr).getValue());
+    }
+
     private Expr sourceToExpr(String source) {
         Lexer scanner = new Lexer(source);
         Parser parser = new Parser(scanner.scanTokens());
         return parser.expression();
     }
 
+    @Test
+    public void testParseMaterializedTokens() {
+        List<Token> tokens = new Lexer("\"ab\" + 1.5").scanTokens();
+        for (Token token : tokens) {
+            token.getLexeme();
+        }
+        BinaryExpr expr = (BinaryExpr) new Parser(tokens).expression();
+        Assertions.assertEquals("ab", ((LiteralExpr) expr.getLeft()).getValue());
+        Assertions.assertEquals(1.5, ((LiteralExpr) expr.getRight()).getValue());
+        Assertions.assertEquals("+", expr.getOperator().getLexeme());
+    }
+
     @Test
     public void testWhile() {
         String source = "var sum = 0;" +
@@ -99,4 +346,53 @@ public class ParserTest {
         interpreter.interpret(stmts);
 
     }
+
+    @Test
+    public void testResolve() {
+        String source = "var a = 1;" +
+                "{" +
+                "var b = a;" +
+                "{ var a = b; print a; }" +
+                "}";
+        List<Stmt> stmts = new Parser(new Lexer(source).scanTokens()).parse();
+        int slotCount = new Resolver(new Globals()).resolve(stmts);
+        Assertions.assertEquals(2, slotCount);
+
+        Assertions.assertEquals(-1, ((VarStmt) stmts.get(0)).getDepth());
+        BlockStmt outer = (BlockStmt) stmts.get(1);
+        VarStmt b = (VarStmt) outer.getStmts().get(0);
+        Assertions.assertEquals(0, b.getDepth());
+        Assertions.assertEquals(0, b.getSlot());
+        Assertions.assertEquals(-1, ((VariableExpr) b.getExpr()).getDepth());
+
+        BlockStmt inner = (BlockStmt) outer.getStmts().get(1);
+        VariableExpr printed = (VariableExpr) ((PrintStmt) inner.getStmts().get(1)).getExpression();
+        Assertions.assertEquals(0, printed.getDepth());
+        Assertions.assertEquals(1, printed.getSlot());
+    }
+
+    @Test
+    public void testConstantFolding() {
+        String source = "var day = 60 * 60 * 24;" +
+                "var name = \"prefix\" + \"-\" + \"x\";" +
+                "var flag = !(1 < 2) or nil;" +
+                "var a = (day);" +
+                "var bad = 1 + \"a\";" +
+                "if (true) print 1; else print 2;" +
+                "while (false) print 3;" +
+                "if (!a) print 4; else print 5;";
+        List<Stmt> stmts = new Optimizer().optimize(new Parser(new Lexer(source).scanTokens()).parse());
+        Assertions.assertEquals(7, stmts.size());
+        Assertions.assertEquals(86400.0, ((LiteralExpr) ((VarStmt) stmts.get(0)).getExpr()).getValue());
+        Assertions.assertEquals("prefix-x", ((LiteralExpr) ((VarStmt) stmts.get(1)).getExpr()).getValue());
+        Assertions.assertNull(((LiteralExpr) ((VarStmt) stmts.get(2)).getExpr()).getValue());
+        Assertions.assertTrue(((VarStmt) stmts.get(3)).getExpr() instanceof VariableExpr);
+        //运行时才报错的表达式不折叠
+        Assertions.assertTrue(((VarStmt) stmts.get(4)).getExpr() instanceof BinaryExpr);
+        Assertions.assertTrue(stmts.get(5) instanceof PrintStmt);
+
+        IfStmt ifStmt = (IfStmt) stmts.get(6);
+        Assertions.assertTrue(ifStmt.getExpr() instanceof VariableExpr);
+        Assertions.assertEquals(5.0, ((LiteralExpr) ((PrintStmt) ifStmt.getThenBranch()).getExpression()).getValue());
+    }
 }
@@ -0,0 +1,180 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import minilang.Budget;
+import minilang.BudgetExceededException;
+import minilang.Interpreter;
+import minilang.Lexer;
+import minilang.Parser;
+import minilang.Stmt;
+import minilang.StringOutput;
+import minilang.vm.VM;
+
+/**
+ * @author tianbing <tianbing@kuaishou.com>
+ * Created on 2023-06-18
+ */
+public class VMTest {
+
+    @Test
+    public void testSameOutputAsInterpreter() {
+        String source = "var a = 1;" +
+                "print -a + 2 * 3;" +
+                "print !nil;" +
+                "print nil or \"x\";" +
+                "print false and 1;" +
+                "print \"a\" + \"b\";" +
+                "if (a >= 1) print \"then\"; else print \"else\";" +
+                "{" +
+                "    var i = 0;" +
+                "    var sum = 0;" +
+                "    while (i < 100) {" +
+                "        var x = i;" +
+                "        sum = sum + x;" +
+                "        i = i + 1;" +
+                "    }" +
+                "    a = sum;" +
+                "}" +
+                "print a;";
+        String expected = "5\ntrue\nx\nfalse\nab\nthen\n4950\n";
+        Assertions.assertEquals(expected, run(source, false));
+        Assertions.assertEquals(expected, run(source, true));
+    }
+
+    @Test
+    public void testFunction() {
+        String source = "fun fib(n) {" +
+                "    if (n < 2) return n;" +
+                "    return fib(n - 1) + fib(n - 2);" +
+                "}" +
+                "print fib(15);" +
+                "fun makeCounter() {" +
+                "    var count = 0;" +
+                "    fun counter() {" +
+                "        count = count + 1;" +
+                "        return count;" +
+                "    }" +
+                "    return counter;" +
+                "}" +
+                "var c = makeCounter();" +
+                "c(); c();" +
+                "print c();" +
+                "fun adder(x) { fun add(y) { fun inner() { return x + y; } return inner(); } return add; }" +
+                "print adder(10)(5);" +
+                "fun find(limit) {" +
+                "    var i = 0;" +
+                "    while (true) { if (i * i > limit) return i; i = i + 1; }" +
+                "}" +
+                "print find(50);" +
+                "fun none() {}" +
+                "print none();" +
+                "print fib;";
+        String expected = "610\n3\n15\n8\nnil\n<fn fib>\n";
+        Assertions.assertEquals(expected, run(source, false));
+        Assertions.assertEquals(expected, run(source, true));
+    }
+
+    @Test
+    public void testDeepRecursion() {
+        //调用栈在堆上，递归深度不受Java栈大小限制
+        String source = "fun count(n) { if (n == 0) return 0; return 1 + count(n - 1); }" +
+                "print count(100000);";
+        List<Stmt> stmts = new Parser(new Lexer(source).scanTokens()).parse();
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer));
+        try {
+            new VM(200000).interpret(stmts);
+        } finally {
+            System.setOut(out);
+        }
+        Assertions.assertEquals("100000\n", buffer.toString());
+
+        RuntimeException e = Assertions.assertThrows(RuntimeException.class, () -> run(source, true));
+        Assertions.assertTrue(e.getMessage().startsWith("stack overflow"), e.getMessage());
+    }
+
+    @Test
+    public void testClosureInLoop() {
+        String source = "var first = nil; var second = nil; var i = 0;" +
+                "while (i < 2) {" +
+                "    var j = i;" +
+                "    fun f() { print j; }" +
+                "    if (i == 0) first = f; else second = f;" +
+                "    i = i + 1;" +
+                "}" +
+                "first(); second();" +
+                "fun make() {" +
+                "    var k = 0; var a = nil; var b = nil;" +
+                "    while (k < 2) {" +
+                "        var v = k * 10;" +
+                "        fun g() { return v; }" +
+                "        if (k == 0) a = g; else b = g;" +
+                "        k = k + 1;" +
+                "    }" +
+                "    return a() + b();" +
+                "}" +
+                "print make();" +
+                "fun h() { while (true) { var x = 5; fun q() { return x; } return q(); } }" +
+                "print h();";
+        Assertions.assertEquals(run(source, false), run(source, true));
+        Assertions.assertEquals("0\n1\n10\n5\n", run(source, true));
+    }
+
+    @Test
+    public void testTailCall() {
+        //尾调用不占用调用深度，超过默认的最大深度也能执行
+        String source = "fun loop(i, acc) {" +
+                "    if (i == 0) return acc;" +
+                "    return loop(i - 1, acc + 1);" +
+                "}" +
+                "print loop(100000, 0);";
+        Assertions.assertEquals("100000\n", run(source, true));
+    }
+
+    @Test
+    public void testRuntimeErrorHasLine() {
+        RuntimeException e = Assertions.assertThrows(RuntimeException.class, () -> run("var a = 1;\nprint a + nil;", true));
+        Assertions.assertTrue(e.getMessage().endsWith("at line 2"), e.getMessage());
+    }
+
+    @Test
+    public void testBudget() {
+        for (String source : new String[] {"while (true) {}", "fun f(n) { return f(n + 1); } f(0);"}) {
+            VM vm = new VM();
+            vm.setBudget(new Budget(100000, Budget.UNLIMITED));
+            List<Stmt> stmts = new Parser(new Lexer(source).scanTokens()).parse();
+            Assertions.assertThrows(BudgetExceededException.class, () -> vm.interpret(stmts), source);
+        }
+    }
+
+    @Test
+    public void testOutput() {
+        VM vm = new VM();
+        StringOutput output = new StringOutput();
+        vm.setOutput(output);
+        vm.interpret(new Parser(new Lexer("fun f(x) { print x; } f(1); f(\"a\");").scanTokens()).parse());
+        Assertions.assertEquals("1\na\n", output.getText());
+    }
+
+    private String run(String source, boolean vm) {
+        List<Stmt> stmts = new Parser(new Lexer(source).scanTokens()).parse();
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer));
+        try {
+            if (vm) {
+                new VM().interpret(stmts);
+            } else {
+                new Interpreter().interpret(stmts);
+            }
+        } finally {
+            System.setOut(out);
+        }
+        return buffer.toString();
+    }
+}